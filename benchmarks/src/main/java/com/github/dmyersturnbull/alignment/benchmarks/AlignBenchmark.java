@@ -0,0 +1,68 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.github.dmyersturnbull.alignment.benchmarks;
+
+import com.github.dmyersturnbull.alignment.ScoreEngine;
+import com.github.dmyersturnbull.alignment.SequenceAlignment;
+import org.biojava.nbio.alignment.Alignments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full alignments with traceback, by {@link com.github.dmyersturnbull.alignment.SequenceAligner#align}.
+ * @author Douglas Myers-Turnbull
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AlignBenchmark {
+
+	@Param({"DNA", "PROTEIN"})
+	public String alphabet;
+
+	@Param({"GLOBAL", "LOCAL"})
+	public Alignments.PairwiseSequenceAlignerType type;
+
+	@Param({"100", "1000", "10000", "50000"})
+	public int length;
+
+	private BenchmarkPair<?, ?> m_pair;
+
+	@Setup
+	public void setUp() throws Exception {
+		m_pair = BenchmarkPair.create(alphabet, type, ScoreEngine.SCALAR, length, false);
+	}
+
+	@Benchmark
+	public SequenceAlignment<?, ?> align() {
+		return m_pair.align();
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.github.dmyersturnbull.alignment.benchmarks;
+
+import com.github.dmyersturnbull.alignment.ScoreEngine;
+import com.github.dmyersturnbull.alignment.SequenceAligner;
+import com.github.dmyersturnbull.alignment.SequenceAlignment;
+import com.github.dmyersturnbull.alignment.SequenceAlignmentWithPvalue;
+import org.biojava.nbio.alignment.Alignments;
+import org.biojava.nbio.core.sequence.DNASequence;
+import org.biojava.nbio.core.sequence.ProteinSequence;
+import org.biojava.nbio.core.sequence.compound.AminoAcidCompound;
+import org.biojava.nbio.core.sequence.compound.NucleotideCompound;
+import org.biojava.nbio.core.sequence.template.AbstractSequence;
+import org.biojava.nbio.core.sequence.template.Compound;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+
+/**
+ * An aligner and two related random sequences to benchmark it on.
+ * The second sequence is the first with about 8% substitutions, 1% deletions, and 1% insertions, so both global and local
+ * alignments are meaningful. Sequences depend only on their length and alphabet.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+final class BenchmarkPair<S extends AbstractSequence<C>, C extends Compound> {
+
+	private static final String sf_nucleotides = "ACGT";
+	private static final String sf_aminoAcids = "ACDEFGHIKLMNPQRSTVWY";
+	private static final long sf_seed = 0;
+
+	private final SequenceAligner<S, C> m_aligner;
+	private final S m_a;
+	private final S m_b;
+
+	private BenchmarkPair(@Nonnull SequenceAligner<S, C> aligner, @Nonnull S a, @Nonnull S b) {
+		m_aligner = aligner;
+		m_a = a;
+		m_b = b;
+	}
+
+	/**
+	 * @param alphabet "DNA" or "PROTEIN"
+	 * @param parallel Whether to run permutation tests on {@link ForkJoinPool#commonPool()}
+	 */
+	@Nonnull
+	static BenchmarkPair<?, ?> create(@Nonnull String alphabet, @Nonnull Alignments.PairwiseSequenceAlignerType type,
+			@Nonnull ScoreEngine engine, @Nonnegative int length, boolean parallel) throws Exception {
+		switch (alphabet) {
+			case "DNA":
+				return create(SequenceAligner.dna(type), sf_nucleotides, DNASequence::new, engine, length, parallel);
+			case "PROTEIN":
+				return create(SequenceAligner.protein(type), sf_aminoAcids, ProteinSequence::new, engine, length, parallel);
+			default:
+				throw new IllegalArgumentException("Unknown alphabet " + alphabet);
+		}
+	}
+
+	@Nonnull
+	private static <S extends AbstractSequence<C>, C extends Compound> BenchmarkPair<S, C> create(
+			@Nonnull SequenceAligner.Builder<S, C> builder, @Nonnull String residues, @Nonnull SequenceAligner.SequenceCreator<S> creator,
+			@Nonnull ScoreEngine engine, @Nonnegative int length, boolean parallel) throws Exception {
+		builder.setScoreEngine(engine).setSeed(sf_seed);
+		if (parallel) builder.setExecutor(ForkJoinPool.commonPool());
+		Random random = new Random(sf_seed);
+		StringBuilder a = new StringBuilder(length), b = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			char residue = residues.charAt(random.nextInt(residues.length()));
+			a.append(residue);
+			int mutation = random.nextInt(100);
+			if (mutation < 8) {
+				b.append(residues.charAt(random.nextInt(residues.length())));
+			} else if (mutation == 8) {
+				b.append(residue).append(residues.charAt(random.nextInt(residues.length())));
+			} else if (mutation != 9) {
+				b.append(residue);
+			}
+		}
+		return new BenchmarkPair<>(builder.build(), creator.create(a.toString()), creator.create(b.toString()));
+	}
+
+	@Nonnull
+	SequenceAlignment<S, C> align() {
+		return m_aligner.align(m_a, m_b);
+	}
+
+	int alignFast() {
+		return m_aligner.alignFast(m_a, m_b);
+	}
+
+	/**
+	 * Aligns the pair once, now.
+	 * @return A permutation test of that alignment with a given number of simulations
+	 */
+	@Nonnull
+	IntFunction<SequenceAlignmentWithPvalue<S, C>> pvalueOfAlignment() {
+		SequenceAlignment<S, C> alignment = align();
+		return nSimulations -> m_aligner.calcPvalueByPermutation(nSimulations, alignment);
+	}
+
+}
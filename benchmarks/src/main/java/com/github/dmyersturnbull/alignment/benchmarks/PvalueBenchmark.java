@@ -0,0 +1,79 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.github.dmyersturnbull.alignment.benchmarks;
+
+import com.github.dmyersturnbull.alignment.ScoreEngine;
+import com.github.dmyersturnbull.alignment.SequenceAlignmentWithPvalue;
+import org.biojava.nbio.alignment.Alignments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * A permutation test of one alignment, by {@link com.github.dmyersturnbull.alignment.SequenceAligner#calcPvalueByPermutation(int, com.github.dmyersturnbull.alignment.SequenceAlignment)}.
+ * The pair is aligned once, in setup, so the traceback isn't timed.
+ * @author Douglas Myers-Turnbull
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PvalueBenchmark {
+
+	@Param({"DNA", "PROTEIN"})
+	public String alphabet;
+
+	@Param({"GLOBAL", "LOCAL"})
+	public Alignments.PairwiseSequenceAlignerType type;
+
+	@Param({"SCALAR", "STRIPED"})
+	public ScoreEngine engine;
+
+	@Param({"200", "1000"})
+	public int length;
+
+	@Param({"100", "1000", "10000"})
+	public int nSimulations;
+
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	private IntFunction<? extends SequenceAlignmentWithPvalue<?, ?>> m_pvalue;
+
+	@Setup
+	public void setUp() throws Exception {
+		m_pvalue = BenchmarkPair.create(alphabet, type, engine, length, parallel).pvalueOfAlignment();
+	}
+
+	@Benchmark
+	public SequenceAlignmentWithPvalue<?, ?> calcPvalueByPermutation() {
+		return m_pvalue.apply(nSimulations);
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * Where an optimal alignment lies, and its score, without the alignment itself: it aligns {@code a[aStart, aEnd)}
+ * with {@code b[bStart, bEnd)}. Positions are 0-based. From {@link SequenceAligner#locate}; pass it to
+ * {@link SequenceAligner#align(org.biojava.nbio.core.sequence.template.AbstractSequence, org.biojava.nbio.core.sequence.template.AbstractSequence, AlignmentHit)}
+ * to align just that window.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+public final class AlignmentHit {
+
+	private final int m_score;
+	private final int m_aStart;
+	private final int m_aEnd;
+	private final int m_bStart;
+	private final int m_bEnd;
+
+	AlignmentHit(int score, int aStart, int aEnd, int bStart, int bEnd) {
+		assert 0 <= aStart && aStart <= aEnd && 0 <= bStart && bStart <= bEnd;
+		m_score = score;
+		m_aStart = aStart;
+		m_aEnd = aEnd;
+		m_bStart = bStart;
+		m_bEnd = bEnd;
+	}
+
+	public int getScore() {
+		return m_score;
+	}
+
+	@Nonnegative
+	public int getAStart() {
+		return m_aStart;
+	}
+
+	@Nonnegative
+	public int getAEnd() {
+		return m_aEnd;
+	}
+
+	@Nonnegative
+	public int getBStart() {
+		return m_bStart;
+	}
+
+	@Nonnegative
+	public int getBEnd() {
+		return m_bEnd;
+	}
+
+	@Override
+	public String toString() {
+		return "AlignmentHit{score=" + m_score + ", a=[" + m_aStart + ", " + m_aEnd + "), b=[" + m_bStart + ", " + m_bEnd + ")}";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		AlignmentHit that = (AlignmentHit) o;
+		return m_score == that.m_score && m_aStart == that.m_aStart && m_aEnd == that.m_aEnd
+				&& m_bStart == that.m_bStart && m_bEnd == that.m_bEnd;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(m_score, m_aStart, m_aEnd, m_bStart, m_bEnd);
+	}
+
+}
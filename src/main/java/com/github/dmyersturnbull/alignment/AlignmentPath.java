@@ -0,0 +1,169 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * The result of a traceback: the operations that align {@code a[aStart, aEnd)} with {@code b[bStart, bEnd)}, and their score.
+ * Positions are 0-based.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+final class AlignmentPath {
+
+	/**
+	 * Aligns a residue of A with a residue of B.
+	 */
+	static final byte MATCH = 0;
+
+	/**
+	 * A gap in A: consumes a residue of B only.
+	 */
+	static final byte GAP_IN_A = 1;
+
+	/**
+	 * A gap in B: consumes a residue of A only.
+	 */
+	static final byte GAP_IN_B = 2;
+
+	private final byte[] m_operations;
+	private final int m_aStart;
+	private final int m_aEnd;
+	private final int m_bStart;
+	private final int m_bEnd;
+	private final int m_score;
+
+	private AlignmentPath(@Nonnull byte[] operations, int aStart, int bStart, int score) {
+		m_operations = operations;
+		m_aStart = aStart;
+		m_bStart = bStart;
+		int aEnd = aStart, bEnd = bStart;
+		for (byte operation : operations) {
+			if (operation != GAP_IN_A) aEnd++;
+			if (operation != GAP_IN_B) bEnd++;
+		}
+		m_aEnd = aEnd;
+		m_bEnd = bEnd;
+		m_score = score;
+	}
+
+	@Nonnegative
+	int length() {
+		return m_operations.length;
+	}
+
+	byte getOperation(@Nonnegative int index) {
+		return m_operations[index];
+	}
+
+	@Nonnegative
+	int getAStart() {
+		return m_aStart;
+	}
+
+	@Nonnegative
+	int getAEnd() {
+		return m_aEnd;
+	}
+
+	@Nonnegative
+	int getBStart() {
+		return m_bStart;
+	}
+
+	@Nonnegative
+	int getBEnd() {
+		return m_bEnd;
+	}
+
+	int getScore() {
+		return m_score;
+	}
+
+	/**
+	 * Recalculates the score of this path from scratch; used to check tracebacks.
+	 */
+	static int rescore(@Nonnull AlignmentPath path, @Nonnull byte[] a, @Nonnull byte[] b, @Nonnull SubstitutionTable<?> table, int gop, int gep) {
+		int score = 0, i = path.m_aStart, j = path.m_bStart;
+		byte previous = MATCH;
+		for (byte operation : path.m_operations) {
+			if (operation == MATCH) {
+				score += table.getScore(a[i++], b[j++]);
+			} else {
+				if (operation != previous) score += gop;
+				score += gep;
+				if (operation == GAP_IN_A) j++;
+				else i++;
+			}
+			previous = operation;
+		}
+		return score;
+	}
+
+	/**
+	 * Collects operations from either end of an alignment.
+	 */
+	@NotThreadSafe
+	static final class Builder {
+
+		private byte[] m_operations = new byte[16];
+		private int m_length;
+
+		Builder append(byte operation) {
+			if (m_length == m_operations.length) m_operations = Arrays.copyOf(m_operations, m_length * 2);
+			m_operations[m_length++] = operation;
+			return this;
+		}
+
+		Builder append(byte operation, @Nonnegative int times) {
+			for (int i = 0; i < times; i++) {
+				append(operation);
+			}
+			return this;
+		}
+
+		Builder append(@Nonnull AlignmentPath path) {
+			for (byte operation : path.m_operations) {
+				append(operation);
+			}
+			return this;
+		}
+
+		/**
+		 * Reverses the operations appended so far, for tracebacks that start at the end of the alignment.
+		 */
+		Builder reverse() {
+			for (int i = 0, j = m_length - 1; i < j; i++, j--) {
+				byte tmp = m_operations[i];
+				m_operations[i] = m_operations[j];
+				m_operations[j] = tmp;
+			}
+			return this;
+		}
+
+		@Nonnull
+		AlignmentPath build(@Nonnegative int aStart, @Nonnegative int bStart, int score) {
+			return new AlignmentPath(Arrays.copyOf(m_operations, m_length), aStart, bStart, score);
+		}
+	}
+
+}
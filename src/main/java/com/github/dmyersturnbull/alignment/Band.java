@@ -0,0 +1,120 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * Restricts alignment to the diagonals near the one joining the start and end of both sequences.
+ * For sequences of lengths {@code n} and {@code m}, the band includes the diagonals from {@code min(0, m - n) - width}
+ * to {@code max(0, m - n) + width}, where diagonal {@code d} holds the cells with {@code j - i = d}.
+ * So the cost is {@code O((|m - n| + width) * n)} instead of {@code O(n * m)}.
+ *
+ * A {@link #fixed(int) fixed} band might miss the best alignment if it needs more than {@code width} net insertions or deletions.
+ * An {@link #auto(int) automatic} band starts narrow and doubles until the band covers the whole matrix or, for global alignment,
+ * the score provably can't be beaten by any alignment leaving the band, so global scores are always optimal.
+ * For local alignment, it also stops once the score is unchanged across two doublings; that's a heuristic,
+ * and the score can be lower than the best.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+public final class Band {
+
+	private final int m_width;
+	private final boolean m_auto;
+
+	private Band(int width, boolean auto) {
+		Preconditions.checkArgument(width >= 0, "Band width " + width + " is negative");
+		m_width = width;
+		m_auto = auto;
+	}
+
+	@Nonnull
+	public static Band fixed(@Nonnegative int width) {
+		return new Band(width, false);
+	}
+
+	@Nonnull
+	public static Band auto(@Nonnegative int initialWidth) {
+		return new Band(initialWidth, true);
+	}
+
+	@Nonnegative
+	public int getWidth() {
+		return m_width;
+	}
+
+	public boolean isAuto() {
+		return m_auto;
+	}
+
+	/**
+	 * @return The lowest diagonal {@code j - i} in the band, at least {@code -aLength}
+	 */
+	static int lowest(@Nonnegative int aLength, @Nonnegative int bLength, @Nonnegative int width) {
+		return (int) Math.max(-aLength, (long) Math.min(0, bLength - aLength) - width);
+	}
+
+	/**
+	 * @return The highest diagonal {@code j - i} in the band, at most {@code bLength}
+	 */
+	static int highest(@Nonnegative int aLength, @Nonnegative int bLength, @Nonnegative int width) {
+		return (int) Math.min(bLength, (long) Math.max(0, bLength - aLength) + width);
+	}
+
+	static boolean coversMatrix(@Nonnegative int aLength, @Nonnegative int bLength, @Nonnegative int width) {
+		return lowest(aLength, bLength, width) == -aLength && highest(aLength, bLength, width) == bLength;
+	}
+
+	/**
+	 * @return An upper bound on the global score of any alignment that leaves the band:
+	 * it needs at least {@code |m - n| + 2 * (width + 1)} gap positions, so it has at most {@code min(n, m) - width - 1} matches
+	 */
+	static long upperBoundOutside(@Nonnegative int aLength, @Nonnegative int bLength, @Nonnegative int width, int maxScore, int gop, int gep) {
+		long nGaps = Math.abs((long) bLength - aLength) + 2L * width + 2;
+		long nMatches = Math.max(0, Math.min(aLength, bLength) - (long) width - 1);
+		return Math.max(0, maxScore) * nMatches + gop + nGaps * gep;
+	}
+
+	@Override
+	public String toString() {
+		return (m_auto ? "auto(" : "fixed(") + m_width + ")";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		Band that = (Band) o;
+		return m_width == that.m_width && m_auto == that.m_auto;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(m_width, m_auto);
+	}
+
+}
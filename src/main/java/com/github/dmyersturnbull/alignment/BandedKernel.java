@@ -0,0 +1,243 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * The recurrence of {@link ScoreKernel}, restricted to a {@link Band}. Cells outside the band are minus infinity.
+ * Also performs tracebacks, storing one byte per cell of the band: the previous state for each of M, X, and Y.
+ * States are numbered like the operations of {@link AlignmentPath}: M is {@link AlignmentPath#MATCH}, X is
+ * {@link AlignmentPath#GAP_IN_A}, and Y is {@link AlignmentPath#GAP_IN_B}.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class BandedKernel implements FastScorer {
+
+	private static final byte sf_start = 3; // M starts a local alignment
+
+	private final SubstitutionTable<?> m_table;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final Band m_band;
+	private final ScoreKernel m_fallback;
+
+	private int[] m_currentM = new int[0], m_currentX = new int[0], m_currentY = new int[0];
+	private int[] m_aboveM = new int[0], m_aboveX = new int[0], m_aboveY = new int[0];
+
+	// set by fill
+	private int m_bestRow, m_bestCol;
+	private byte m_endState;
+
+	BandedKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull Band band) {
+		assert gop < 1 && gep < 1;
+		m_table = table;
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_band = band;
+		m_fallback = new ScoreKernel(table, gop, gep, global);
+	}
+
+	@Override
+	public int score(@Nonnull byte[] a, @Nonnull byte[] b) {
+		if (a.length == 0 || b.length == 0) return m_fallback.score(a, b);
+		if (!m_band.isAuto()) return fill(a, b, m_band.getWidth(), null);
+		return chooseWidth(a, b)[1];
+	}
+
+	@Nonnull
+	AlignmentPath align(@Nonnull byte[] a, @Nonnull byte[] b) {
+
+		int n = a.length, m = b.length;
+		AlignmentPath.Builder path = new AlignmentPath.Builder();
+		if (n == 0 || m == 0) {
+			if (m_global) path.append(AlignmentPath.GAP_IN_B, n).append(AlignmentPath.GAP_IN_A, m);
+			return path.build(0, 0, m_fallback.score(a, b));
+		}
+
+		int width = m_band.isAuto() ? chooseWidth(a, b)[0] : m_band.getWidth();
+		int lo = Band.lowest(n, m, width), span = Band.highest(n, m, width) - lo + 1;
+		byte[] trace = new byte[Math.multiplyExact(n, span)];
+		int score = fill(a, b, width, trace);
+		if (!m_global && score == 0) return path.build(0, 0, 0); // nothing scores above 0
+
+		int i = m_global ? n : m_bestRow, j = m_global ? m : m_bestCol;
+		byte state = m_global ? m_endState : AlignmentPath.MATCH;
+		while (i > 0 && j > 0) {
+			byte cell = trace[(i - 1) * span + j - i - lo];
+			path.append(state);
+			if (state == AlignmentPath.MATCH) {
+				state = (byte) (cell & 3);
+				i--;
+				j--;
+				if (state == sf_start) break;
+			} else if (state == AlignmentPath.GAP_IN_A) {
+				state = (byte) (cell >> 2 & 3);
+				j--;
+			} else {
+				state = (byte) (cell >> 4 & 3);
+				i--;
+			}
+		}
+		if (m_global) {
+			// only the boundary is left: it's all gaps
+			path.append(AlignmentPath.GAP_IN_B, i).append(AlignmentPath.GAP_IN_A, j);
+			i = j = 0;
+		}
+		return path.reverse().build(i, j, score);
+	}
+
+	/**
+	 * Widens an automatic band until the band covers the matrix or, for global alignment, no alignment outside the band
+	 * could score higher. For local alignment, there's no such bound, so it also stops once the score is unchanged
+	 * across two doublings, which can miss the best score.
+	 * @return The width and the score with that width
+	 */
+	@Nonnull
+	private int[] chooseWidth(@Nonnull byte[] a, @Nonnull byte[] b) {
+		int n = a.length, m = b.length;
+		int width = m_band.getWidth();
+		int score = fill(a, b, width, null);
+		int nUnchanged = 0;
+		while (!Band.coversMatrix(n, m, width)
+				&& !(m_global && score >= Band.upperBoundOutside(n, m, width, m_table.getMaxValue(), m_gop, m_gep))) {
+			width = width == 0 ? 1 : (int) Math.min(Integer.MAX_VALUE / 2, 2L * width);
+			int wider = fill(a, b, width, null);
+			nUnchanged = wider == score ? nUnchanged + 1 : 0;
+			score = wider;
+			if (!m_global && nUnchanged == 2) break;
+		}
+		return new int[] {width, score};
+	}
+
+	/**
+	 * Fills the band.
+	 * @param trace If not null, receives the previous states of cell {@code (i, j)} at {@code (i - 1) * span + j - i - lowest}
+	 */
+	private int fill(@Nonnull byte[] a, @Nonnull byte[] b, int width, @Nullable byte[] trace) {
+
+		int aLength = a.length, bLength = b.length;
+		int lo = Band.lowest(aLength, bLength, width), hi = Band.highest(aLength, bLength, width), span = hi - lo + 1;
+		int[] scores = m_table.getScores();
+		int size = m_table.size(), gop = m_gop, gep = m_gep, open = Math.addExact(m_gop, m_gep);
+		boolean global = m_global;
+
+		ensureCapacity(bLength + 1);
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_aboveM, aboveX = m_aboveX, aboveY = m_aboveY;
+		aboveM[0] = 0;
+		aboveX[0] = aboveY[0] = NEGATIVE_INFINITY;
+		int rowEnd = Math.min(bLength, hi);
+		for (int col = 1; col <= rowEnd; col++) {
+			aboveM[col] = global ? NEGATIVE_INFINITY : 0;
+			aboveX[col] = global ? Math.addExact(gop, Math.multiplyExact(col, gep)) : NEGATIVE_INFINITY;
+			aboveY[col] = NEGATIVE_INFINITY;
+		}
+		if (rowEnd < bLength) aboveM[rowEnd + 1] = aboveX[rowEnd + 1] = aboveY[rowEnd + 1] = NEGATIVE_INFINITY;
+
+		int localBest = 0;
+		for (int row = 1; row <= aLength; row++) {
+			int offset = a[row - 1] * size;
+			int from = Math.max(1, row + lo), to = Math.min(bLength, row + hi);
+			if (from == 1) {
+				boolean inBand = row + lo <= 0;
+				currentM[0] = global || !inBand ? NEGATIVE_INFINITY : 0;
+				currentX[0] = NEGATIVE_INFINITY;
+				currentY[0] = global && inBand ? Math.addExact(gop, Math.multiplyExact(row, gep)) : NEGATIVE_INFINITY;
+			} else {
+				currentM[from - 1] = currentX[from - 1] = currentY[from - 1] = NEGATIVE_INFINITY;
+			}
+			for (int col = from; col <= to; col++) {
+
+				int diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+				int m = Math.addExact(scores[offset + b[col - 1]], diagonal);
+				if (!global && m < 0) m = 0;
+				currentM[col] = m;
+
+				int leftOpen = Math.addExact(open, Math.max(currentM[col - 1], currentY[col - 1]));
+				int leftExtend = Math.addExact(gep, currentX[col - 1]);
+				currentX[col] = Math.max(leftOpen, leftExtend);
+				int aboveOpen = Math.addExact(open, Math.max(aboveM[col], aboveX[col]));
+				int aboveExtend = Math.addExact(gep, aboveY[col]);
+				currentY[col] = Math.max(aboveOpen, aboveExtend);
+
+				if (m > localBest) {
+					localBest = m;
+					m_bestRow = row;
+					m_bestCol = col;
+				}
+
+				if (trace != null) {
+					int fromM = !global && diagonal == 0 ? sf_start : argmax(aboveM[col - 1], aboveX[col - 1], aboveY[col - 1]);
+					int fromX = leftExtend >= leftOpen ? AlignmentPath.GAP_IN_A
+							: currentM[col - 1] >= currentY[col - 1] ? AlignmentPath.MATCH : AlignmentPath.GAP_IN_B;
+					int fromY = aboveExtend >= aboveOpen ? AlignmentPath.GAP_IN_B
+							: aboveM[col] >= aboveX[col] ? AlignmentPath.MATCH : AlignmentPath.GAP_IN_A;
+					trace[(row - 1) * span + col - row - lo] = (byte) (fromM | fromX << 2 | fromY << 4);
+				}
+			}
+			if (to < bLength) currentM[to + 1] = currentX[to + 1] = currentY[to + 1] = NEGATIVE_INFINITY;
+
+			int[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_aboveM = aboveM;
+		m_aboveX = aboveX;
+		m_aboveY = aboveY;
+
+		if (global) {
+			m_endState = (byte) argmax(aboveM[bLength], aboveX[bLength], aboveY[bLength]);
+			return Math.max(aboveM[bLength], Math.max(aboveX[bLength], aboveY[bLength]));
+		}
+		return localBest;
+	}
+
+	/**
+	 * @return The state (M, X, or Y) with the highest score, preferring M and then X
+	 */
+	private static int argmax(int m, int x, int y) {
+		if (m >= x && m >= y) return AlignmentPath.MATCH;
+		return x >= y ? AlignmentPath.GAP_IN_A : AlignmentPath.GAP_IN_B;
+	}
+
+	private void ensureCapacity(int length) {
+		if (m_aboveM.length >= length) return;
+		m_currentM = new int[length];
+		m_currentX = new int[length];
+		m_currentY = new int[length];
+		m_aboveM = new int[length];
+		m_aboveX = new int[length];
+		m_aboveY = new int[length];
+	}
+
+}
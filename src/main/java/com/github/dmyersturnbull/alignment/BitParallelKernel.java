@@ -0,0 +1,142 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Calculates unit-cost (edit distance) scores with Myers' bit-vector algorithm
+ * (Myers, G. A fast bit-vector algorithm for approximate string matching based on dynamic programming. J. ACM, 1999),
+ * in blocks of 64 rows for sequences A longer than one word (Hyyro, H. A bit-vector algorithm for computing Levenshtein
+ * and Damerau edit distances. Nordic Journal of Computing, 2003).
+ *
+ * With a gap opening penalty of 0 and every residue pair scoring either 0 or the extension penalty {@code gep},
+ * a global score under the recurrence of {@link ScoreKernel} is exactly {@code gep} times the edit distance.
+ * The edit-distance matrix is then encoded by its vertical differences, each -1, 0, or +1, as two bit-vectors per column
+ * of B, and a whole column is computed in a few word operations: 64 cells per {@code long}.
+ * Only the bottom row is tracked, so both plain global alignment and the semi-global alignment of {@link EndGaps#freeB()},
+ * in which the alignment can start and end anywhere in B, come from the same column loop.
+ *
+ * Other scoring, local alignment, and other end gaps are handed to a {@link ScoreKernel}.
+ * The bit-vectors for A are kept until a different A is passed, so use one instance per thread.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class BitParallelKernel implements FastScorer {
+
+	private final int m_size;
+	private final int m_gep;
+	private final boolean m_semiGlobal;
+	private final boolean m_applies;
+	private final boolean[] m_matches;
+	private final ScoreKernel m_fallback;
+
+	private byte[] m_query = new byte[0];
+	private int m_nWords;
+	private long[] m_peq = new long[0];
+	private long[] m_pv = new long[0], m_mv = new long[0];
+
+	/**
+	 * @param endGaps Only {@link EndGaps#none()} and {@link EndGaps#freeB()} use bit-vectors
+	 */
+	BitParallelKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull EndGaps endGaps) {
+		assert gop < 1 && gep < 1;
+		m_size = table.size();
+		m_gep = gep;
+		m_fallback = new ScoreKernel(table, gop, gep, global, endGaps);
+		m_semiGlobal = endGaps.equals(EndGaps.freeB());
+		int[] scores = table.getScores();
+		m_matches = new boolean[scores.length];
+		boolean unitCost = gop == 0 && gep < 0;
+		for (int i = 0; i < scores.length; i++) {
+			m_matches[i] = scores[i] == 0;
+			if (scores[i] != 0 && scores[i] != gep) unitCost = false;
+		}
+		m_applies = global && unitCost && (endGaps.isNone() || m_semiGlobal);
+	}
+
+	@Override
+	public int score(@Nonnull byte[] a, @Nonnull byte[] b) {
+		if (!m_applies || a.length == 0 || b.length == 0) return m_fallback.score(a, b);
+		if (!Arrays.equals(a, m_query)) buildProfile(a);
+		return Math.multiplyExact(distance(b), m_gep);
+	}
+
+	/**
+	 * Builds the match vector of each code: bit {@code i % 64} of word {@code i / 64} is set if the code matches {@code a[i]}.
+	 */
+	private void buildProfile(@Nonnull byte[] a) {
+		int size = m_size, nWords = (a.length + 63) >>> 6;
+		if (m_peq.length < size * nWords) m_peq = new long[size * nWords];
+		else Arrays.fill(m_peq, 0, size * nWords, 0);
+		if (m_pv.length < nWords) {
+			m_pv = new long[nWords];
+			m_mv = new long[nWords];
+		}
+		boolean[] matches = m_matches;
+		for (int code = 0; code < size; code++) {
+			for (int i = 0; i < a.length; i++) {
+				if (matches[a[i] * size + code]) m_peq[code * nWords + (i >>> 6)] |= 1L << i;
+			}
+		}
+		m_nWords = nWords;
+		m_query = a.clone();
+	}
+
+	/**
+	 * @return The edit distance of A, from the current profile, against {@code b}; or, for semi-global alignment,
+	 * the least edit distance of A against any substring of {@code b}
+	 */
+	private int distance(@Nonnull byte[] b) {
+
+		int nWords = m_nWords, last = nWords - 1, lastBit = (m_query.length - 1) & 63;
+		long[] peq = m_peq, pv = m_pv, mv = m_mv;
+		Arrays.fill(pv, 0, nWords, -1L);
+		Arrays.fill(mv, 0, nWords, 0L);
+		// a global alignment must skip the start of B at a cost of 1 per residue; a semi-global one skips it free
+		int topDelta = m_semiGlobal ? 0 : 1;
+
+		int distance = m_query.length, best = distance;
+		for (byte code : b) {
+			int offset = code * nWords;
+			int carry = topDelta;
+			for (int w = 0; w < nWords; w++) {
+				long eq = peq[offset + w], pvw = pv[w], mvw = mv[w];
+				long xv = eq | mvw;
+				if (carry < 0) eq |= 1L;
+				long xh = (((eq & pvw) + pvw) ^ pvw) | eq;
+				long ph = mvw | ~(xh | pvw);
+				long mh = pvw & xh;
+				int bit = w == last ? lastBit : 63;
+				int out = (int) (ph >>> bit & 1L) - (int) (mh >>> bit & 1L);
+				ph <<= 1;
+				mh <<= 1;
+				if (carry < 0) mh |= 1L;
+				else if (carry > 0) ph |= 1L;
+				pv[w] = mh | ~(xv | ph);
+				mv[w] = ph & xv;
+				carry = out;
+			}
+			distance += carry;
+			if (distance < best) best = distance;
+		}
+		return m_semiGlobal ? best : distance;
+	}
+
+}
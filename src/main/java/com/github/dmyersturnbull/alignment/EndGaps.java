@@ -0,0 +1,135 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * Which ends of a global alignment can leave residues unaligned at no cost.
+ * For example, with {@link #freeB()}, all of A must be aligned somewhere inside B, as when searching for a primer or adapter A
+ * in a read B; with {@link #overlap()}, any end can overhang, as when finding the overlap between the end of one read
+ * and the start of another. Residues left unaligned at a free end are outside the alignment, like the flanks of a local alignment.
+ * An alignment still starts at the start of A or of B, and ends at the end of A or of B: it never skips both at once.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+public final class EndGaps {
+
+	private static final EndGaps sf_none = new EndGaps(false, false, false, false);
+
+	private final boolean m_aStart;
+	private final boolean m_aEnd;
+	private final boolean m_bStart;
+	private final boolean m_bEnd;
+
+	private EndGaps(boolean aStart, boolean aEnd, boolean bStart, boolean bEnd) {
+		m_aStart = aStart;
+		m_aEnd = aEnd;
+		m_bStart = bStart;
+		m_bEnd = bEnd;
+	}
+
+	/**
+	 * @param aStart Whether residues at the start of A can be left unaligned at no cost
+	 * @param aEnd Whether residues at the end of A can
+	 * @param bStart Whether residues at the start of B can
+	 * @param bEnd Whether residues at the end of B can
+	 */
+	@Nonnull
+	public static EndGaps of(boolean aStart, boolean aEnd, boolean bStart, boolean bEnd) {
+		return new EndGaps(aStart, aEnd, bStart, bEnd);
+	}
+
+	/**
+	 * Ordinary global alignment; the default.
+	 */
+	@Nonnull
+	public static EndGaps none() {
+		return sf_none;
+	}
+
+	/**
+	 * Semi-global alignment: all of A aligned within B.
+	 */
+	@Nonnull
+	public static EndGaps freeB() {
+		return new EndGaps(false, false, true, true);
+	}
+
+	/**
+	 * End-gap-free alignment, for overlaps and containment.
+	 */
+	@Nonnull
+	public static EndGaps overlap() {
+		return new EndGaps(true, true, true, true);
+	}
+
+	public boolean isAStartFree() {
+		return m_aStart;
+	}
+
+	public boolean isAEndFree() {
+		return m_aEnd;
+	}
+
+	public boolean isBStartFree() {
+		return m_bStart;
+	}
+
+	public boolean isBEndFree() {
+		return m_bEnd;
+	}
+
+	/**
+	 * @return Whether no end is free
+	 */
+	public boolean isNone() {
+		return !m_aStart && !m_aEnd && !m_bStart && !m_bEnd;
+	}
+
+	/**
+	 * @return Whether swapping A and B gives the same end gaps, so that scores are symmetric
+	 */
+	public boolean isSymmetric() {
+		return m_aStart == m_bStart && m_aEnd == m_bEnd;
+	}
+
+	@Override
+	public String toString() {
+		return "EndGaps{aStart=" + m_aStart + ", aEnd=" + m_aEnd + ", bStart=" + m_bStart + ", bEnd=" + m_bEnd + "}";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		EndGaps that = (EndGaps) o;
+		return m_aStart == that.m_aStart && m_aEnd == that.m_aEnd && m_bStart == that.m_bStart && m_bEnd == that.m_bEnd;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(m_aStart, m_aEnd, m_bStart, m_bEnd);
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Calculates an alignment score from sequences encoded by a {@link SubstitutionTable}, without a traceback.
+ * Implementations keep buffers between calls, so use one instance per thread.
+ * @author Douglas Myers-Turnbull
+ */
+interface FastScorer {
+
+	int score(@Nonnull byte[] a, @Nonnull byte[] b);
+
+	/**
+	 * Same as {@link #score}, but may give up as soon as the score can't reach {@code threshold}.
+	 * @return The score if it's at least {@code threshold}; otherwise, some value below {@code threshold}
+	 */
+	default int scoreAtLeast(@Nonnull byte[] a, @Nonnull byte[] b, int threshold) {
+		return score(a, b);
+	}
+
+	/**
+	 * Scores {@code a} against each of {@code bs[0, count)} into {@code scores[offset, offset + count)},
+	 * like {@link #scoreAtLeast}. The sequences in {@code bs} all have the same length, as permutations of one sequence do.
+	 * @param threshold {@link Integer#MIN_VALUE} for exact scores
+	 */
+	default void scoreAll(@Nonnull byte[] a, @Nonnull byte[][] bs, @Nonnegative int count, int threshold, @Nonnull int[] scores, @Nonnegative int offset) {
+		for (int i = 0; i < count; i++) {
+			scores[offset + i] = scoreAtLeast(a, bs[i], threshold);
+		}
+	}
+
+}
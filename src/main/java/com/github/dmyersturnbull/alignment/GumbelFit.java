@@ -0,0 +1,166 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * A Gumbel (type I extreme value) distribution fit to alignment scores by maximum likelihood,
+ * with {@code P(S >= x) = 1 - exp(-exp(-lambda * (x - mu)))}.
+ * Local alignment scores of unrelated sequences follow this distribution closely (Karlin, S. and Altschul, S.F.
+ * Methods for assessing the statistical significance of molecular sequence features. PNAS, 1990), so a few hundred
+ * permuted scores are enough to extrapolate p-values far smaller than {@code 1 / nSimulations}.
+ * Global scores have no such guarantee, and the fit is only an approximation there.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+public final class GumbelFit {
+
+	private static final double sf_tolerance = 1e-10;
+	private static final int sf_maxIterations = 100;
+
+	private final double m_mu;
+	private final double m_lambda;
+	private final int m_nSamples;
+
+	private GumbelFit(double mu, double lambda, int nSamples) {
+		m_mu = mu;
+		m_lambda = lambda;
+		m_nSamples = nSamples;
+	}
+
+	/**
+	 * Solves the likelihood equation for lambda with Newton's method, falling back to bisection when a step leaves the bracket
+	 * (the same approach as {@code esl_gumbel_FitComplete} in Easel). The equation has exactly one root.
+	 * @throws IllegalArgumentException If the scores don't have at least two distinct values
+	 */
+	@Nonnull
+	public static GumbelFit fit(@Nonnull int[] scores) {
+		int n = scores.length;
+		double mean = 0;
+		int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+		for (int score : scores) {
+			mean += score;
+			min = Math.min(min, score);
+			max = Math.max(max, score);
+		}
+		Preconditions.checkArgument(n > 1 && min < max, "Can't fit a Gumbel distribution to " + n + " scores with only one distinct value");
+		mean /= n;
+		double variance = 0;
+		for (int score : scores) {
+			variance += (score - mean) * (score - mean);
+		}
+		variance /= n - 1;
+
+		// the method of moments is close, so Newton's method usually converges in a few steps
+		double lambda = Math.PI / Math.sqrt(6 * variance);
+		double low = 0, high = Double.POSITIVE_INFINITY;
+		for (int iteration = 0; iteration < sf_maxIterations; iteration++) {
+			double[] value = likelihood(scores, min, mean, lambda);
+			if (Math.abs(value[0]) < sf_tolerance) break;
+			if (value[0] > 0) low = lambda;
+			else high = lambda;
+			double next = lambda - value[0] / value[1];
+			if (!(next > low && next < high)) next = Double.isInfinite(high) ? 2 * lambda : (low + high) / 2;
+			lambda = next;
+		}
+
+		double sum = 0;
+		for (int score : scores) {
+			sum += Math.exp(-lambda * (score - min));
+		}
+		double mu = min - Math.log(sum / n) / lambda;
+		return new GumbelFit(mu, lambda, n);
+	}
+
+	/**
+	 * The scores are shifted by their minimum, so that no term overflows.
+	 * @return The derivative of the log-likelihood with respect to lambda (up to a factor of n), and its own derivative
+	 */
+	@Nonnull
+	private static double[] likelihood(@Nonnull int[] scores, int min, double mean, double lambda) {
+		double sum = 0, weighted = 0, squared = 0;
+		for (int score : scores) {
+			double x = score - min, e = Math.exp(-lambda * x);
+			sum += e;
+			weighted += x * e;
+			squared += x * x * e;
+		}
+		double weightedMean = weighted / sum;
+		double f = 1 / lambda - (mean - min) + weightedMean;
+		double df = -1 / (lambda * lambda) - (squared / sum - weightedMean * weightedMean);
+		return new double[] {f, df};
+	}
+
+	/**
+	 * @return The probability of a score of at least {@code score} under this distribution; accurate for very small values
+	 */
+	@Nonnegative
+	public double pvalue(double score) {
+		return -Math.expm1(-Math.exp(-m_lambda * (score - m_mu)));
+	}
+
+	/**
+	 * @return The location parameter, mu: the mode of the distribution
+	 */
+	public double getMu() {
+		return m_mu;
+	}
+
+	/**
+	 * @return The scale parameter, lambda, in units of 1/score
+	 */
+	public double getLambda() {
+		return m_lambda;
+	}
+
+	/**
+	 * @return The number of scores the distribution was fit to
+	 */
+	@Nonnegative
+	public int getNSamples() {
+		return m_nSamples;
+	}
+
+	@Override
+	public String toString() {
+		return "GumbelFit{mu=" + m_mu + ", lambda=" + m_lambda + ", n=" + m_nSamples + "}";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		GumbelFit that = (GumbelFit) o;
+		return m_mu == that.m_mu && m_lambda == that.m_lambda && m_nSamples == that.m_nSamples;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(m_mu, m_lambda, m_nSamples);
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Calculates the same scores as {@link ScoreKernel}, for one sequence A against {@link #LANES} sequences B of the same length
+ * at once (Rognes, T. Faster Smith-Waterman database searches with inter-sequence SIMD parallelisation. BMC Bioinformatics, 2011).
+ *
+ * The sequences B are interleaved so that residue {@code col} of lane {@code k} sits at {@code col * LANES + k}, and so do the
+ * matrices. Every lane follows exactly the same recurrence with no dependency between lanes, so the innermost loop over lanes
+ * is one the JIT can turn into SIMD instructions, and a permutation test costs about {@code nSimulations / LANES} passes.
+ * Sequences whose scores could come near overflowing an {@code int} are scored one at a time by a {@link ScoreKernel}.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class InterSequenceKernel implements FastScorer {
+
+	static final int LANES = 16;
+
+	private final SubstitutionTable<?> m_table;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final ScoreKernel m_single;
+
+	private byte[] m_interleaved = new byte[0];
+	private int[] m_profile = new int[0], m_columnBest = new int[0];
+	private int[] m_currentM = new int[0], m_currentX = new int[0], m_currentY = new int[0];
+	private int[] m_aboveM = new int[0], m_aboveX = new int[0], m_aboveY = new int[0];
+	private final int[] m_best = new int[LANES];
+
+	InterSequenceKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global) {
+		assert gop < 1 && gep < 1;
+		m_table = table;
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_single = new ScoreKernel(table, gop, gep, global);
+	}
+
+	@Override
+	public int score(@Nonnull byte[] a, @Nonnull byte[] b) {
+		return m_single.score(a, b);
+	}
+
+	/**
+	 * Scores exactly, whatever the threshold, since the lanes can only stop together.
+	 */
+	@Override
+	public void scoreAll(@Nonnull byte[] a, @Nonnull byte[][] bs, @Nonnegative int count, int threshold, @Nonnull int[] scores, @Nonnegative int offset) {
+		if (count == 0) return;
+		int bLength = bs[0].length;
+		if (a.length == 0 || bLength == 0 || !m_table.isBounded(a.length, bLength, m_gop, m_gep, SubstitutionTable.INT_LIMIT)) {
+			FastScorer.super.scoreAll(a, bs, count, threshold, scores, offset);
+			return;
+		}
+		for (int first = 0; first < count; first += LANES) {
+			int nLanes = Math.min(LANES, count - first);
+			interleave(bs, first, nLanes, bLength);
+			scoreLanes(a, bLength);
+			System.arraycopy(m_best, 0, scores, offset + first, nLanes);
+		}
+	}
+
+	/**
+	 * Lanes past {@code nLanes} repeat the last sequence, so every lane holds a real sequence.
+	 */
+	private void interleave(@Nonnull byte[][] bs, int first, int nLanes, int bLength) {
+		if (m_interleaved.length < bLength * LANES) m_interleaved = new byte[bLength * LANES];
+		byte[] interleaved = m_interleaved;
+		for (int lane = 0; lane < LANES; lane++) {
+			byte[] b = bs[first + Math.min(lane, nLanes - 1)];
+			for (int col = 0; col < bLength; col++) {
+				interleaved[col * LANES + lane] = b[col];
+			}
+		}
+	}
+
+	/**
+	 * Fills {@link #m_best} with the score of each lane.
+	 */
+	private void scoreLanes(@Nonnull byte[] a, int bLength) {
+
+		int[] scores = m_table.getScores();
+		int size = m_table.size(), gop = m_gop, gep = m_gep, open = gop + gep;
+		boolean global = m_global;
+		byte[] b = m_interleaved;
+		int[] best = m_best;
+		int floor = global ? NEGATIVE_INFINITY : 0; // local scores are clamped at 0
+		int last = (bLength + 1) * LANES;
+
+		ensureCapacity(last);
+		int[] profile = m_profile, columnBest = m_columnBest;
+		Arrays.fill(columnBest, 0, last, 0);
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_aboveM, aboveX = m_aboveX, aboveY = m_aboveY;
+		for (int lane = 0; lane < LANES; lane++) {
+			aboveM[lane] = 0;
+			aboveX[lane] = aboveY[lane] = NEGATIVE_INFINITY;
+			best[lane] = 0;
+		}
+		for (int col = 1; col <= bLength; col++) {
+			for (int lane = 0; lane < LANES; lane++) {
+				int i = col * LANES + lane;
+				aboveM[i] = global ? NEGATIVE_INFINITY : 0;
+				aboveX[i] = global ? gop + col * gep : NEGATIVE_INFINITY;
+				aboveY[i] = NEGATIVE_INFINITY;
+			}
+		}
+
+		for (int row = 1; row <= a.length; row++) {
+			// look the substitution scores up first, so that the loop below is pure arithmetic
+			int offset = a[row - 1] * size;
+			for (int i = LANES; i < last; i++) {
+				profile[i] = scores[offset + b[i - LANES]];
+			}
+			for (int lane = 0; lane < LANES; lane++) {
+				currentM[lane] = global ? NEGATIVE_INFINITY : 0;
+				currentX[lane] = NEGATIVE_INFINITY;
+				currentY[lane] = global ? gop + row * gep : NEGATIVE_INFINITY;
+			}
+			for (int i = LANES; i < last; i++) {
+				int left = i - LANES;
+				int m = Math.max(floor, profile[i] + Math.max(aboveM[left], Math.max(aboveX[left], aboveY[left])));
+				currentM[i] = m;
+				currentX[i] = Math.max(open + Math.max(currentM[left], currentY[left]), gep + currentX[left]);
+				currentY[i] = Math.max(open + Math.max(aboveM[i], aboveX[i]), gep + aboveY[i]);
+				columnBest[i] = Math.max(columnBest[i], m);
+			}
+			int[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_aboveM = aboveM;
+		m_aboveX = aboveX;
+		m_aboveY = aboveY;
+
+		if (!global) {
+			for (int i = LANES; i < last; i++) {
+				best[i % LANES] = Math.max(best[i % LANES], columnBest[i]);
+			}
+		} else {
+			for (int lane = 0, i = last - LANES; lane < LANES; lane++, i++) {
+				best[lane] = Math.max(aboveM[i], Math.max(aboveX[i], aboveY[i]));
+			}
+		}
+	}
+
+	private void ensureCapacity(int length) {
+		if (m_aboveM.length >= length) return;
+		m_currentM = new int[length];
+		m_currentX = new int[length];
+		m_currentY = new int[length];
+		m_aboveM = new int[length];
+		m_aboveX = new int[length];
+		m_aboveY = new int[length];
+		m_profile = new int[length];
+		m_columnBest = new int[length];
+	}
+
+}
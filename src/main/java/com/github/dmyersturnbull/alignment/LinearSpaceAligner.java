@@ -0,0 +1,620 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Finds an optimal alignment under the recurrence of {@link ScoreKernel} in {@code O(n + m)} memory, using
+ * Myers and Miller's divide-and-conquer (Myers, E. W. and Miller, W. Optimal alignments in linear space. CABIOS, 1988).
+ *
+ * Each step splits A at its middle row. A forward pass finds the best score of reaching each cell of that row in each state,
+ * and a backward pass finds the best score of finishing from each cell given the state it was entered in.
+ * The best sum fixes a cell and a state that an optimal alignment passes through, and the two halves are solved the same way,
+ * with the state carried across so that a gap spanning the split is charged its opening penalty only once.
+ * Small subproblems are solved with a full matrix.
+ *
+ * For local alignment, a forward pass finds where the best alignment ends, a backward pass from there finds where it starts,
+ * and the two substrings are aligned globally. Global alignment with free {@link EndGaps} works the same way, except that
+ * the alignment can only start and end on the edges of the matrix that are free.
+ * Buffers are kept between calls, so use one instance per thread.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class LinearSpaceAligner {
+
+	/**
+	 * Allows a subproblem to end in any state.
+	 */
+	static final byte ANY_STATE = 3;
+
+	/**
+	 * Subproblems up to this many cells, or with at most one row, are solved with a full matrix.
+	 */
+	static final int MAX_FULL_CELLS = 1 << 12;
+
+	private final int[] m_scores;
+	private final int m_size;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final EndGaps m_endGaps;
+
+	private int[] m_currentM = new int[0], m_currentX = new int[0], m_currentY = new int[0];
+	private int[] m_previousM = new int[0], m_previousX = new int[0], m_previousY = new int[0];
+	private int[] m_middleM = new int[0], m_middleX = new int[0], m_middleY = new int[0];
+	private int[] m_full = new int[0];
+
+	LinearSpaceAligner(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global) {
+		this(table, gop, gep, global, EndGaps.none());
+	}
+
+	/**
+	 * @param endGaps Ignored for local alignment
+	 */
+	LinearSpaceAligner(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull EndGaps endGaps) {
+		assert gop < 1 && gep < 1;
+		m_scores = table.getScores();
+		m_size = table.size();
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_endGaps = endGaps;
+	}
+
+	@Nonnull
+	AlignmentPath align(@Nonnull byte[] a, @Nonnull byte[] b) {
+		if (m_global && m_endGaps.isNone()) {
+			AlignmentPath.Builder path = new AlignmentPath.Builder();
+			int score = solve(a, b, 0, a.length, 0, b.length, AlignmentPath.MATCH, ANY_STATE, path);
+			return path.build(0, 0, score);
+		}
+		return align(a, b, locate(a, b));
+	}
+
+	/**
+	 * Aligns only the window of {@code hit}, in memory proportional to its width.
+	 */
+	@Nonnull
+	AlignmentPath align(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnull AlignmentHit hit) {
+		AlignmentPath.Builder path = new AlignmentPath.Builder();
+		int score = solve(a, b, hit.getAStart(), hit.getAEnd(), hit.getBStart(), hit.getBEnd(), AlignmentPath.MATCH, ANY_STATE, path);
+		assert score == hit.getScore() : "Best score " + hit.getScore() + " but aligned with " + score;
+		return path.build(hit.getAStart(), hit.getBStart(), score);
+	}
+
+	/**
+	 * Finds the end of an optimal alignment with a forward pass, then its start with a backward pass over only the part
+	 * of the matrix before the end, which stops as soon as it reaches the score.
+	 */
+	@Nonnull
+	AlignmentHit locate(@Nonnull byte[] a, @Nonnull byte[] b) {
+		if (m_global) {
+			int[] end = findFreeEnd(a, b);
+			int[] start = findFreeStart(a, b, end[0], end[1], end[2]);
+			return new AlignmentHit(end[2], start[0], end[0], start[1], end[1]);
+		}
+		int[] end = findLocalEnd(a, b);
+		if (end[2] == 0) return new AlignmentHit(0, 0, 0, 0, 0);
+		int[] start = findLocalStart(a, b, end[0], end[1], end[2]);
+		return new AlignmentHit(end[2], start[0], end[0], start[1], end[1]);
+	}
+
+	/**
+	 * Appends an optimal alignment of {@code a[aStart, aEnd)} with {@code b[bStart, bEnd)} to {@code path}.
+	 * @param before The state before the first operation; a gap of the same kind continues without a new opening penalty
+	 * @param end The state of the last operation, or {@link #ANY_STATE}
+	 * @return The score, not counting anything before or after
+	 */
+	private int solve(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd,
+			byte before, byte end, @Nonnull AlignmentPath.Builder path) {
+
+		int nRows = aEnd - aStart, nCols = bEnd - bStart;
+		if (nRows <= 1 || (long) (nRows + 1) * (nCols + 1) <= MAX_FULL_CELLS) {
+			return solveFull(a, b, aStart, aEnd, bStart, bEnd, before, end, path);
+		}
+
+		int[] split = split(a, b, aStart, aEnd, bStart, bEnd, before, end);
+		int middle = split[0], bestCol = split[1];
+		byte bestState = (byte) split[2];
+		int left = solve(a, b, aStart, middle, bStart, bStart + bestCol, before, bestState, path);
+		int right = solve(a, b, middle, aEnd, bStart + bestCol, bEnd, bestState, end, path);
+		assert left + right == split[3];
+		return left + right;
+	}
+
+	/**
+	 * Same as {@link #solve}, for a subproblem that's part of a larger alignment.
+	 * @return The operations, which start at {@code aStart} and {@code bStart}, and their score
+	 */
+	@Nonnull
+	AlignmentPath solve(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, byte before, byte end) {
+		AlignmentPath.Builder path = new AlignmentPath.Builder();
+		int score = solve(a, b, aStart, aEnd, bStart, bEnd, before, end, path);
+		return path.build(aStart, bStart, score);
+	}
+
+	/**
+	 * Finds where an optimal alignment of {@code a[aStart, aEnd)} with {@code b[bStart, bEnd)} crosses the middle row,
+	 * from a forward pass over the top half and a backward pass over the bottom half.
+	 * @return The middle row; the column, relative to {@code bStart}; the state there; and the score
+	 */
+	@Nonnull
+	int[] split(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, byte before, byte end) {
+		int nCols = bEnd - bStart, middle = aStart + (aEnd - aStart) / 2;
+		ensureCapacity(nCols + 1);
+		forward(a, b, aStart, middle, bStart, bEnd, before);
+		// keep the middle row out of the way of the backward pass
+		int[] forwardM = m_previousM, forwardX = m_previousX, forwardY = m_previousY;
+		m_previousM = m_middleM;
+		m_previousX = m_middleX;
+		m_previousY = m_middleY;
+		m_middleM = forwardM;
+		m_middleX = forwardX;
+		m_middleY = forwardY;
+		backward(a, b, middle, aEnd, bStart, bEnd, end);
+		return bestCrossing(m_middleM, m_middleX, m_middleY, m_previousM, m_previousX, m_previousY, middle, nCols);
+	}
+
+	/**
+	 * Picks the best column and state of the middle row, preferring the first column, and M, then X, then Y.
+	 * @return The same as {@link #split(byte[], byte[], int, int, int, int, byte, byte)}
+	 */
+	@Nonnull
+	static int[] bestCrossing(@Nonnull int[] forwardM, @Nonnull int[] forwardX, @Nonnull int[] forwardY,
+			@Nonnull int[] backwardM, @Nonnull int[] backwardX, @Nonnull int[] backwardY, int middle, int nCols) {
+		long best = Long.MIN_VALUE;
+		int bestCol = 0;
+		byte bestState = AlignmentPath.MATCH;
+		for (int col = 0; col <= nCols; col++) {
+			long m = (long) forwardM[col] + backwardM[col];
+			long x = (long) forwardX[col] + backwardX[col];
+			long y = (long) forwardY[col] + backwardY[col];
+			if (m > best) {
+				best = m;
+				bestCol = col;
+				bestState = AlignmentPath.MATCH;
+			}
+			if (x > best) {
+				best = x;
+				bestCol = col;
+				bestState = AlignmentPath.GAP_IN_A;
+			}
+			if (y > best) {
+				best = y;
+				bestCol = col;
+				bestState = AlignmentPath.GAP_IN_B;
+			}
+		}
+		return new int[] {middle, bestCol, bestState, Math.toIntExact(best)};
+	}
+
+	/**
+	 * Fills {@link #m_previousM}, {@link #m_previousX}, and {@link #m_previousY} with the best scores of aligning
+	 * {@code a[aStart, aEnd)} with each {@code b[bStart, bStart + col)} and ending in each state.
+	 */
+	private void forward(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, byte before) {
+
+		int nCols = bEnd - bStart;
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep, open = Math.addExact(gop, gep);
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_previousM, aboveX = m_previousX, aboveY = m_previousY;
+
+		aboveM[0] = before == AlignmentPath.MATCH ? 0 : NEGATIVE_INFINITY;
+		aboveX[0] = before == AlignmentPath.GAP_IN_A ? 0 : NEGATIVE_INFINITY;
+		aboveY[0] = before == AlignmentPath.GAP_IN_B ? 0 : NEGATIVE_INFINITY;
+		for (int col = 1; col <= nCols; col++) {
+			aboveM[col] = aboveY[col] = NEGATIVE_INFINITY;
+			aboveX[col] = Math.max(Math.addExact(open, Math.max(aboveM[col - 1], aboveY[col - 1])), Math.addExact(gep, aboveX[col - 1]));
+		}
+
+		for (int row = aStart; row < aEnd; row++) {
+			int offset = a[row] * size;
+			currentM[0] = currentX[0] = NEGATIVE_INFINITY;
+			currentY[0] = Math.max(Math.addExact(open, Math.max(aboveM[0], aboveX[0])), Math.addExact(gep, aboveY[0]));
+			for (int col = 1; col <= nCols; col++) {
+				int diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+				currentM[col] = Math.addExact(scores[offset + b[bStart + col - 1]], diagonal);
+				currentX[col] = Math.max(
+						Math.addExact(open, Math.max(currentM[col - 1], currentY[col - 1])),
+						Math.addExact(gep, currentX[col - 1])
+				);
+				currentY[col] = Math.max(
+						Math.addExact(open, Math.max(aboveM[col], aboveX[col])),
+						Math.addExact(gep, aboveY[col])
+				);
+			}
+			int[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_previousM = aboveM;
+		m_previousX = aboveX;
+		m_previousY = aboveY;
+	}
+
+	/**
+	 * Fills {@link #m_previousM}, {@link #m_previousX}, and {@link #m_previousY} with the best scores of aligning
+	 * {@code a[aStart, aEnd)} with each {@code b[bStart + col, bEnd)}, given that the operation just before was in each state.
+	 */
+	private void backward(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, byte end) {
+
+		int nCols = bEnd - bStart;
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep;
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] belowM = m_previousM, belowX = m_previousX, belowY = m_previousY;
+
+		belowM[nCols] = end == ANY_STATE || end == AlignmentPath.MATCH ? 0 : NEGATIVE_INFINITY;
+		belowX[nCols] = end == ANY_STATE || end == AlignmentPath.GAP_IN_A ? 0 : NEGATIVE_INFINITY;
+		belowY[nCols] = end == ANY_STATE || end == AlignmentPath.GAP_IN_B ? 0 : NEGATIVE_INFINITY;
+		for (int col = nCols - 1; col >= 0; col--) {
+			int x = Math.addExact(gep, belowX[col + 1]);
+			belowM[col] = belowY[col] = Math.max(NEGATIVE_INFINITY, Math.addExact(gop, x));
+			belowX[col] = Math.max(NEGATIVE_INFINITY, x);
+		}
+
+		for (int row = aEnd - 1; row >= aStart; row--) {
+			int offset = a[row] * size;
+			int y = Math.addExact(gep, belowY[nCols]);
+			currentM[nCols] = currentX[nCols] = Math.max(NEGATIVE_INFINITY, Math.addExact(gop, y));
+			currentY[nCols] = Math.max(NEGATIVE_INFINITY, y);
+			for (int col = nCols - 1; col >= 0; col--) {
+				// the best finish starting with each operation, not counting the opening penalty
+				int m = Math.addExact(scores[offset + b[bStart + col]], belowM[col + 1]);
+				int x = Math.addExact(gep, currentX[col + 1]);
+				y = Math.addExact(gep, belowY[col]);
+				int xOpened = Math.addExact(gop, x), yOpened = Math.addExact(gop, y);
+				currentM[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(xOpened, yOpened)));
+				currentX[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(x, yOpened)));
+				currentY[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(xOpened, y)));
+			}
+			int[] swap = belowM;
+			belowM = currentM;
+			currentM = swap;
+			swap = belowX;
+			belowX = currentX;
+			currentX = swap;
+			swap = belowY;
+			belowY = currentY;
+			currentY = swap;
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_previousM = belowM;
+		m_previousX = belowX;
+		m_previousY = belowY;
+	}
+
+	/**
+	 * Same as {@link #solve}, keeping every cell.
+	 */
+	private int solveFull(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd,
+			byte before, byte end, @Nonnull AlignmentPath.Builder path) {
+
+		int nRows = aEnd - aStart, nCols = bEnd - bStart, width = nCols + 1;
+		int[] scores = m_scores;
+		int size = m_size, gep = m_gep, open = Math.addExact(m_gop, m_gep);
+		int nCells = Math.multiplyExact(nRows + 1, width);
+		if (m_full.length < 3 * nCells) m_full = new int[3 * nCells];
+		int[] full = m_full; // M, then X, then Y
+		int xs = nCells, ys = 2 * nCells;
+
+		for (int row = 0; row <= nRows; row++) {
+			for (int col = 0; col <= nCols; col++) {
+				int cell = row * width + col;
+				if (row == 0 && col == 0) {
+					full[cell] = before == AlignmentPath.MATCH ? 0 : NEGATIVE_INFINITY;
+					full[xs + cell] = before == AlignmentPath.GAP_IN_A ? 0 : NEGATIVE_INFINITY;
+					full[ys + cell] = before == AlignmentPath.GAP_IN_B ? 0 : NEGATIVE_INFINITY;
+					continue;
+				}
+				if (row > 0 && col > 0) {
+					int diagonal = cell - width - 1;
+					int best = Math.max(full[diagonal], Math.max(full[xs + diagonal], full[ys + diagonal]));
+					full[cell] = Math.addExact(scores[a[aStart + row - 1] * size + b[bStart + col - 1]], best);
+				} else {
+					full[cell] = NEGATIVE_INFINITY;
+				}
+				if (col > 0) {
+					int left = cell - 1;
+					full[xs + cell] = Math.max(Math.addExact(open, Math.max(full[left], full[ys + left])), Math.addExact(gep, full[xs + left]));
+				} else {
+					full[xs + cell] = NEGATIVE_INFINITY;
+				}
+				if (row > 0) {
+					int above = cell - width;
+					full[ys + cell] = Math.max(Math.addExact(open, Math.max(full[above], full[xs + above])), Math.addExact(gep, full[ys + above]));
+				} else {
+					full[ys + cell] = NEGATIVE_INFINITY;
+				}
+			}
+		}
+
+		int row = nRows, col = nCols, last = nRows * width + nCols;
+		byte state = end != ANY_STATE ? end : (byte) argmax(full[last], full[xs + last], full[ys + last]);
+		int score = full[state * nCells + last];
+		AlignmentPath.Builder reversed = new AlignmentPath.Builder();
+		while (row > 0 || col > 0) {
+			int cell = row * width + col;
+			reversed.append(state);
+			if (state == AlignmentPath.MATCH) {
+				int diagonal = cell - width - 1;
+				state = (byte) argmax(full[diagonal], full[xs + diagonal], full[ys + diagonal]);
+				row--;
+				col--;
+			} else if (state == AlignmentPath.GAP_IN_A) {
+				int left = cell - 1;
+				if (full[xs + cell] == Math.addExact(gep, full[xs + left])) state = AlignmentPath.GAP_IN_A;
+				else state = full[left] >= full[ys + left] ? AlignmentPath.MATCH : AlignmentPath.GAP_IN_B;
+				col--;
+			} else {
+				int above = cell - width;
+				if (full[ys + cell] == Math.addExact(gep, full[ys + above])) state = AlignmentPath.GAP_IN_B;
+				else state = full[above] >= full[xs + above] ? AlignmentPath.MATCH : AlignmentPath.GAP_IN_A;
+				row--;
+			}
+		}
+		path.append(reversed.reverse().build(0, 0, 0));
+		return score;
+	}
+
+	/**
+	 * @return The row, column, and score of the first cell with the best local score
+	 */
+	@Nonnull
+	private int[] findLocalEnd(@Nonnull byte[] a, @Nonnull byte[] b) {
+		int nCols = b.length;
+		ensureCapacity(nCols + 1);
+		int[] scores = m_scores;
+		int size = m_size, gep = m_gep, open = Math.addExact(m_gop, m_gep);
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_previousM, aboveX = m_previousX, aboveY = m_previousY;
+		for (int col = 0; col <= nCols; col++) {
+			aboveM[col] = 0;
+			aboveX[col] = aboveY[col] = NEGATIVE_INFINITY;
+		}
+		int best = 0, bestRow = 0, bestCol = 0;
+		for (int row = 1; row <= a.length; row++) {
+			int offset = a[row - 1] * size;
+			currentM[0] = 0;
+			currentX[0] = currentY[0] = NEGATIVE_INFINITY;
+			for (int col = 1; col <= nCols; col++) {
+				int diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+				int m = Math.max(0, Math.addExact(scores[offset + b[col - 1]], diagonal));
+				currentM[col] = m;
+				currentX[col] = Math.max(Math.addExact(open, Math.max(currentM[col - 1], currentY[col - 1])), Math.addExact(gep, currentX[col - 1]));
+				currentY[col] = Math.max(Math.addExact(open, Math.max(aboveM[col], aboveX[col])), Math.addExact(gep, aboveY[col]));
+				if (m > best) {
+					best = m;
+					bestRow = row;
+					bestCol = col;
+				}
+			}
+			int[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_previousM = aboveM;
+		m_previousX = aboveX;
+		m_previousY = aboveY;
+		return new int[] {bestRow, bestCol, best};
+	}
+
+	/**
+	 * Aligns backward from the end of the best local alignment, without clamping at 0, to find a start that reaches its score.
+	 * @return The row and column
+	 */
+	@Nonnull
+	private int[] findLocalStart(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnegative int aEnd, @Nonnegative int bEnd, int score) {
+		ensureCapacity(bEnd + 1);
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep, open = Math.addExact(gop, gep);
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] belowM = m_previousM, belowX = m_previousX, belowY = m_previousY;
+		belowM[bEnd] = 0;
+		belowX[bEnd] = belowY[bEnd] = NEGATIVE_INFINITY;
+		for (int col = bEnd - 1; col >= 0; col--) {
+			belowM[col] = belowY[col] = NEGATIVE_INFINITY;
+			belowX[col] = Math.addExact(gop, Math.multiplyExact(bEnd - col, gep));
+		}
+		for (int row = aEnd - 1; row >= 0; row--) {
+			int offset = a[row] * size;
+			currentM[bEnd] = currentX[bEnd] = NEGATIVE_INFINITY;
+			currentY[bEnd] = Math.addExact(gop, Math.multiplyExact(aEnd - row, gep));
+			for (int col = bEnd - 1; col >= 0; col--) {
+				int diagonal = Math.max(belowM[col + 1], Math.max(belowX[col + 1], belowY[col + 1]));
+				int m = Math.addExact(scores[offset + b[col]], diagonal);
+				if (m == score) return new int[] {row, col};
+				currentM[col] = m;
+				currentX[col] = Math.max(Math.addExact(open, Math.max(currentM[col + 1], currentY[col + 1])), Math.addExact(gep, currentX[col + 1]));
+				currentY[col] = Math.max(Math.addExact(open, Math.max(belowM[col], belowX[col])), Math.addExact(gep, belowY[col]));
+			}
+			int[] swap = belowM;
+			belowM = currentM;
+			currentM = swap;
+			swap = belowX;
+			belowX = currentX;
+			currentX = swap;
+			swap = belowY;
+			belowY = currentY;
+			currentY = swap;
+		}
+		throw new AssertionError("No start reaches local score " + score);
+	}
+
+	/**
+	 * Fills the matrix forward, starting alignments anywhere on the free top and left edges.
+	 * @return The row, column, and score of the first best cell among those an alignment can end in
+	 */
+	@Nonnull
+	private int[] findFreeEnd(@Nonnull byte[] a, @Nonnull byte[] b) {
+		int nCols = b.length;
+		ensureCapacity(nCols + 1);
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep, open = Math.addExact(gop, gep);
+		boolean startTop = m_endGaps.isBStartFree(), startLeft = m_endGaps.isAStartFree();
+		boolean endBottom = m_endGaps.isBEndFree(), endRight = m_endGaps.isAEndFree();
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_previousM, aboveX = m_previousX, aboveY = m_previousY;
+		aboveM[0] = 0;
+		aboveX[0] = aboveY[0] = NEGATIVE_INFINITY;
+		for (int col = 1; col <= nCols; col++) {
+			aboveM[col] = startTop ? 0 : NEGATIVE_INFINITY;
+			aboveX[col] = startTop ? NEGATIVE_INFINITY : Math.addExact(gop, Math.multiplyExact(col, gep));
+			aboveY[col] = NEGATIVE_INFINITY;
+		}
+		int best = Integer.MIN_VALUE, bestRow = 0, bestCol = 0;
+		for (int row = 0; row <= a.length; row++) {
+			if (row > 0) {
+				int offset = a[row - 1] * size;
+				currentM[0] = startLeft ? 0 : NEGATIVE_INFINITY;
+				currentX[0] = NEGATIVE_INFINITY;
+				currentY[0] = startLeft ? NEGATIVE_INFINITY : Math.addExact(gop, Math.multiplyExact(row, gep));
+				for (int col = 1; col <= nCols; col++) {
+					int diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+					currentM[col] = Math.addExact(scores[offset + b[col - 1]], diagonal);
+					currentX[col] = Math.max(Math.addExact(open, Math.max(currentM[col - 1], currentY[col - 1])), Math.addExact(gep, currentX[col - 1]));
+					currentY[col] = Math.max(Math.addExact(open, Math.max(aboveM[col], aboveX[col])), Math.addExact(gep, aboveY[col]));
+				}
+				int[] swap = aboveM;
+				aboveM = currentM;
+				currentM = swap;
+				swap = aboveX;
+				aboveX = currentX;
+				currentX = swap;
+				swap = aboveY;
+				aboveY = currentY;
+				currentY = swap;
+			}
+			// the last column if the end of A is free, and the last row if the end of B is
+			boolean last = row == a.length;
+			for (int col = endBottom && last ? 0 : nCols; col <= nCols && (col < nCols || endRight || last); col++) {
+				int cell = Math.max(aboveM[col], Math.max(aboveX[col], aboveY[col]));
+				if (cell > best) {
+					best = cell;
+					bestRow = row;
+					bestCol = col;
+				}
+			}
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_previousM = aboveM;
+		m_previousX = aboveX;
+		m_previousY = aboveY;
+		return new int[] {bestRow, bestCol, best};
+	}
+
+	/**
+	 * Aligns backward from {@code (aEnd, bEnd)}, as {@link #backward} does, to find a start on the free top or left edge
+	 * (or the first cell) that reaches {@code score}. A start's value is M's, since a first gap is charged its opening penalty.
+	 * @return The row and column
+	 */
+	@Nonnull
+	private int[] findFreeStart(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnegative int aEnd, @Nonnegative int bEnd, int score) {
+		boolean startTop = m_endGaps.isBStartFree(), startLeft = m_endGaps.isAStartFree();
+		ensureCapacity(bEnd + 1);
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep;
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] belowM = m_previousM, belowX = m_previousX, belowY = m_previousY;
+		belowM[bEnd] = belowX[bEnd] = belowY[bEnd] = 0;
+		for (int col = bEnd - 1; col >= 0; col--) {
+			int x = Math.addExact(gep, belowX[col + 1]);
+			belowM[col] = belowY[col] = Math.addExact(gop, x);
+			belowX[col] = x;
+		}
+		if (startLeft && belowM[0] == score) return new int[] {aEnd, 0};
+		for (int row = aEnd - 1; row >= 0; row--) {
+			int offset = a[row] * size;
+			int y = Math.addExact(gep, belowY[bEnd]);
+			currentM[bEnd] = currentX[bEnd] = Math.addExact(gop, y);
+			currentY[bEnd] = y;
+			for (int col = bEnd - 1; col >= 0; col--) {
+				int m = Math.addExact(scores[offset + b[col]], belowM[col + 1]);
+				int x = Math.addExact(gep, currentX[col + 1]);
+				y = Math.addExact(gep, belowY[col]);
+				int xOpened = Math.addExact(gop, x), yOpened = Math.addExact(gop, y);
+				currentM[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(xOpened, yOpened)));
+				currentX[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(x, yOpened)));
+				currentY[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(xOpened, y)));
+			}
+			if (startLeft && currentM[0] == score) return new int[] {row, 0};
+			int[] swap = belowM;
+			belowM = currentM;
+			currentM = swap;
+			swap = belowX;
+			belowX = currentX;
+			currentX = swap;
+			swap = belowY;
+			belowY = currentY;
+			currentY = swap;
+		}
+		for (int col = startTop ? bEnd : 0; col >= 0; col--) {
+			if (belowM[col] == score) return new int[] {0, col};
+		}
+		throw new AssertionError("No start reaches score " + score);
+	}
+
+	/**
+	 * @return The state (M, X, or Y) with the highest score, preferring M and then X
+	 */
+	private static int argmax(int m, int x, int y) {
+		if (m >= x && m >= y) return AlignmentPath.MATCH;
+		return x >= y ? AlignmentPath.GAP_IN_A : AlignmentPath.GAP_IN_B;
+	}
+
+	private void ensureCapacity(int length) {
+		if (m_previousM.length >= length) return;
+		m_currentM = new int[length];
+		m_currentX = new int[length];
+		m_currentY = new int[length];
+		m_previousM = new int[length];
+		m_previousX = new int[length];
+		m_previousY = new int[length];
+		m_middleM = new int[length];
+		m_middleX = new int[length];
+		m_middleY = new int[length];
+	}
+
+}
@@ -0,0 +1,215 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the permuted scores from permutation tests, so that pairs with the same null distribution share them.
+ * Permuting B keeps only its composition, so the null depends on the scoring parameters, the whole of A,
+ * the number of times each residue occurs in B, and the number of simulations.
+ *
+ * Entries are evicted least-recently-used first once their total size reaches a limit, in bytes.
+ * The cache can be {@link #save(Path) saved} to a binary file and {@link #load(Path, long) loaded} back.
+ * Pass one to {@link SequenceAligner.Builder#setNullCache(NullDistributionCache)}; it can be shared between aligners.
+ * @author Douglas Myers-Turnbull
+ */
+@ThreadSafe
+public final class NullDistributionCache {
+
+	private static final int sf_magic = 0x4e554c4c; // "NULL"
+	private static final int sf_version = 1;
+	private static final int sf_entryOverhead = 64;
+
+	private final Cache<Key, int[]> m_cache;
+
+	private NullDistributionCache(@Nonnegative long maxBytes) {
+		Preconditions.checkArgument(maxBytes >= 0, "Maximum size " + maxBytes + " is negative");
+		m_cache = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((Key key, int[] scores) -> (int) Math.min(Integer.MAX_VALUE, key.bytes() + 4L * scores.length + sf_entryOverhead))
+				.build();
+	}
+
+	@Nonnull
+	public static NullDistributionCache create(@Nonnegative long maxBytes) {
+		return new NullDistributionCache(maxBytes);
+	}
+
+	/**
+	 * Reads a cache written by {@link #save(Path)}. Entries past {@code maxBytes} are evicted as they're read.
+	 * @throws IOException If the file can't be read or isn't a saved cache
+	 */
+	@Nonnull
+	public static NullDistributionCache load(@Nonnull Path file, @Nonnegative long maxBytes) throws IOException {
+		NullDistributionCache cache = new NullDistributionCache(maxBytes);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != sf_magic) throw new IOException(file + " is not a null distribution cache");
+			int version = in.readInt();
+			if (version != sf_version) throw new IOException("Unsupported version " + version + " of " + file);
+			int nEntries = in.readInt();
+			for (int i = 0; i < nEntries; i++) {
+				int[] parameters = readInts(in);
+				byte[] a = new byte[in.readInt()];
+				in.readFully(a);
+				int[] composition = readInts(in);
+				int[] scores = readInts(in);
+				cache.m_cache.put(new Key(parameters, a, composition, scores.length), scores);
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Writes every entry to {@code file}, replacing it only once the new file is complete.
+	 */
+	public void save(@Nonnull Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		List<Map.Entry<Key, int[]>> entries = new ArrayList<>(m_cache.asMap().entrySet()); // the count can't change while writing
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(sf_magic);
+			out.writeInt(sf_version);
+			out.writeInt(entries.size());
+			for (Map.Entry<Key, int[]> entry : entries) {
+				Key key = entry.getKey();
+				writeInts(out, key.m_parameters);
+				out.writeInt(key.m_a.length);
+				out.write(key.m_a);
+				writeInts(out, key.m_composition);
+				writeInts(out, entry.getValue());
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return The number of null distributions held
+	 */
+	public long size() {
+		return m_cache.size();
+	}
+
+	public void clear() {
+		m_cache.invalidateAll();
+	}
+
+	/**
+	 * @return The cached scores, which must not be modified, or the scores from {@code simulate}, after caching them
+	 */
+	@Nonnull
+	int[] get(@Nonnull Key key, @Nonnull Supplier<int[]> simulate) {
+		try {
+			return m_cache.get(key, simulate::get);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+	@Nonnull
+	private static int[] readInts(@Nonnull DataInputStream in) throws IOException {
+		int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void writeInts(@Nonnull DataOutputStream out, @Nonnull int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "NullDistributionCache{size=" + m_cache.size() + "}";
+	}
+
+	/**
+	 * Everything a null distribution depends on.
+	 */
+	@Immutable
+	static final class Key {
+
+		private final int[] m_parameters;
+		private final byte[] m_a;
+		private final int[] m_composition;
+		private final int m_nSimulations;
+		private final int m_hashCode;
+
+		/**
+		 * @param parameters The scoring parameters, flattened: anything that changes the scores
+		 * @param a The encoded sequence A
+		 * @param composition The number of times each code occurs in the encoded sequence B
+		 */
+		Key(@Nonnull int[] parameters, @Nonnull byte[] a, @Nonnull int[] composition, @Nonnegative int nSimulations) {
+			m_parameters = parameters;
+			m_a = a;
+			m_composition = composition;
+			m_nSimulations = nSimulations;
+			m_hashCode = 31 * (31 * (31 * Arrays.hashCode(parameters) + Arrays.hashCode(a)) + Arrays.hashCode(composition)) + nSimulations;
+		}
+
+		private long bytes() {
+			return 4L * m_parameters.length + m_a.length + 4L * m_composition.length;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (o == null || getClass() != o.getClass()) {
+				return false;
+			}
+			Key that = (Key) o;
+			return m_hashCode == that.m_hashCode && m_nSimulations == that.m_nSimulations
+					&& Arrays.equals(m_a, that.m_a) && Arrays.equals(m_composition, that.m_composition)
+					&& Arrays.equals(m_parameters, that.m_parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			return m_hashCode;
+		}
+	}
+
+}
@@ -0,0 +1,310 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Finds an optimal alignment under the recurrence of {@link ScoreKernel} with one pass over a full matrix,
+ * keeping only how each cell was reached: one byte per cell, outside the Java heap.
+ *
+ * {@link LinearSpaceAligner} needs only {@code O(n + m)} memory, but fills each cell about twice. Keeping the M, X, and Y
+ * scores of every cell would take 12 bytes per cell, but a traceback only needs the choices they lead to, which fit in 6 bits:
+ * the state before M, and for each of X and Y, whether it extends a gap, and if not, which state opened it.
+ * Scores are kept for only two rows at a time, and choices are made exactly as in the full-matrix case of {@link LinearSpaceAligner}.
+ *
+ * The choices are kept in direct buffers, so they're outside the garbage-collected heap, and they're freed as soon as the
+ * traceback finishes, instead of whenever a collection finds them.
+ * For local alignment and free {@link EndGaps}, the window is located first, as in {@link LinearSpaceAligner}.
+ * Pairs long enough for the scores to overflow an {@code int} are handed to the {@link LinearSpaceAligner}.
+ * Rows are kept between calls, so use one instance per thread.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class PackedTracebackAligner {
+
+	/**
+	 * Each buffer holds {@code 2^30} cells, under the 2 GB limit of a single buffer.
+	 */
+	private static final int sf_segmentShift = 30;
+	private static final int sf_segmentMask = (1 << sf_segmentShift) - 1;
+
+	// the low two bits hold the state before M
+	private static final int sf_matchFrom = 3;
+	private static final int sf_xExtends = 1 << 2;
+	private static final int sf_xOpensFromY = 1 << 3;
+	private static final int sf_yExtends = 1 << 4;
+	private static final int sf_yOpensFromX = 1 << 5;
+
+	private static final Consumer<ByteBuffer> sf_free = findFree();
+
+	private final SubstitutionTable<?> m_table;
+	private final int[] m_scores;
+	private final int m_size;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final EndGaps m_endGaps;
+	private final LinearSpaceAligner m_locator;
+
+	private int[] m_currentM = new int[0], m_currentX = new int[0], m_currentY = new int[0];
+	private int[] m_previousM = new int[0], m_previousX = new int[0], m_previousY = new int[0];
+	private byte[] m_row = new byte[0];
+
+	/**
+	 * @param endGaps Ignored for local alignment
+	 */
+	PackedTracebackAligner(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull EndGaps endGaps) {
+		assert gop < 1 && gep < 1;
+		m_table = table;
+		m_scores = table.getScores();
+		m_size = table.size();
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_endGaps = endGaps;
+		m_locator = new LinearSpaceAligner(table, gop, gep, global, endGaps);
+	}
+
+	/**
+	 * @return The bytes needed to align sequences of these lengths, at most
+	 */
+	static long bytes(@Nonnegative int aLength, @Nonnegative int bLength) {
+		return (long) (aLength + 1) * (bLength + 1);
+	}
+
+	@Nonnull
+	AlignmentPath align(@Nonnull byte[] a, @Nonnull byte[] b) {
+		if (!m_table.isBounded(a.length, b.length, m_gop, m_gep, SubstitutionTable.INT_LIMIT)) return m_locator.align(a, b);
+		if (m_global && m_endGaps.isNone()) {
+			return solve(a, b, 0, a.length, 0, b.length);
+		}
+		AlignmentHit hit = m_locator.locate(a, b);
+		AlignmentPath path = solve(a, b, hit.getAStart(), hit.getAEnd(), hit.getBStart(), hit.getBEnd());
+		assert path.getScore() == hit.getScore() : "Best score " + hit.getScore() + " but aligned with " + path.getScore();
+		return path;
+	}
+
+	/**
+	 * Aligns {@code a[aStart, aEnd)} with {@code b[bStart, bEnd)} globally, ending in any state.
+	 */
+	@Nonnull
+	private AlignmentPath solve(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd) {
+
+		int nRows = aEnd - aStart, nCols = bEnd - bStart, width = nCols + 1;
+		int[] scores = m_scores;
+		int size = m_size, gep = m_gep, open = Math.addExact(m_gop, m_gep);
+		if (m_previousM.length < width) {
+			m_currentM = new int[width];
+			m_currentX = new int[width];
+			m_currentY = new int[width];
+			m_previousM = new int[width];
+			m_previousX = new int[width];
+			m_previousY = new int[width];
+			m_row = new byte[width];
+		}
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_previousM, aboveX = m_previousX, aboveY = m_previousY;
+		byte[] row = m_row;
+
+		try (Choices choices = new Choices(bytes(nRows, nCols))) {
+
+			aboveM[0] = 0;
+			aboveX[0] = aboveY[0] = NEGATIVE_INFINITY;
+			row[0] = 0;
+			for (int col = 1; col <= nCols; col++) {
+				aboveM[col] = aboveY[col] = NEGATIVE_INFINITY;
+				aboveX[col] = Math.max(Math.addExact(open, Math.max(aboveM[col - 1], aboveY[col - 1])), Math.addExact(gep, aboveX[col - 1]));
+				row[col] = (byte) xChoices(aboveX[col], aboveM[col - 1], aboveX[col - 1], aboveY[col - 1], gep);
+			}
+			choices.put(0, row, width);
+
+			for (int r = 1; r <= nRows; r++) {
+				int offset = a[aStart + r - 1] * size;
+				currentM[0] = currentX[0] = NEGATIVE_INFINITY;
+				currentY[0] = Math.max(Math.addExact(open, Math.max(aboveM[0], aboveX[0])), Math.addExact(gep, aboveY[0]));
+				row[0] = (byte) yChoices(currentY[0], aboveM[0], aboveX[0], aboveY[0], gep);
+				for (int col = 1; col <= nCols; col++) {
+					int diagonalM = aboveM[col - 1], diagonalX = aboveX[col - 1], diagonalY = aboveY[col - 1];
+					int choice = argmax(diagonalM, diagonalX, diagonalY);
+					currentM[col] = scores[offset + b[bStart + col - 1]] + Math.max(diagonalM, Math.max(diagonalX, diagonalY));
+
+					int leftM = currentM[col - 1], leftY = currentY[col - 1];
+					int xOpened = open + Math.max(leftM, leftY), xExtended = gep + currentX[col - 1];
+					currentX[col] = Math.max(xOpened, xExtended);
+					if (xExtended >= xOpened) choice |= sf_xExtends;
+					else if (leftM < leftY) choice |= sf_xOpensFromY;
+
+					int upM = aboveM[col], upX = aboveX[col];
+					int yOpened = open + Math.max(upM, upX), yExtended = gep + aboveY[col];
+					currentY[col] = Math.max(yOpened, yExtended);
+					if (yExtended >= yOpened) choice |= sf_yExtends;
+					else if (upM < upX) choice |= sf_yOpensFromX;
+
+					row[col] = (byte) choice;
+				}
+				choices.put((long) r * width, row, width);
+				int[] swap = aboveM;
+				aboveM = currentM;
+				currentM = swap;
+				swap = aboveX;
+				aboveX = currentX;
+				currentX = swap;
+				swap = aboveY;
+				aboveY = currentY;
+				currentY = swap;
+			}
+			m_currentM = currentM;
+			m_currentX = currentX;
+			m_currentY = currentY;
+			m_previousM = aboveM;
+			m_previousX = aboveX;
+			m_previousY = aboveY;
+
+			byte state = (byte) argmax(aboveM[nCols], aboveX[nCols], aboveY[nCols]);
+			int score = state == AlignmentPath.MATCH ? aboveM[nCols] : state == AlignmentPath.GAP_IN_A ? aboveX[nCols] : aboveY[nCols];
+			AlignmentPath.Builder reversed = new AlignmentPath.Builder();
+			int r = nRows, col = nCols;
+			while (r > 0 || col > 0) {
+				int choice = choices.get((long) r * width + col);
+				reversed.append(state);
+				if (state == AlignmentPath.MATCH) {
+					state = (byte) (choice & sf_matchFrom);
+					r--;
+					col--;
+				} else if (state == AlignmentPath.GAP_IN_A) {
+					if ((choice & sf_xExtends) == 0) state = (choice & sf_xOpensFromY) == 0 ? AlignmentPath.MATCH : AlignmentPath.GAP_IN_B;
+					col--;
+				} else {
+					if ((choice & sf_yExtends) == 0) state = (choice & sf_yOpensFromX) == 0 ? AlignmentPath.MATCH : AlignmentPath.GAP_IN_A;
+					r--;
+				}
+			}
+			return reversed.reverse().build(aStart, bStart, score);
+		}
+	}
+
+	private static int xChoices(int x, int leftM, int leftX, int leftY, int gep) {
+		if (x == Math.addExact(gep, leftX)) return sf_xExtends;
+		return leftM >= leftY ? 0 : sf_xOpensFromY;
+	}
+
+	private static int yChoices(int y, int aboveM, int aboveX, int aboveY, int gep) {
+		if (y == Math.addExact(gep, aboveY)) return sf_yExtends;
+		return aboveM >= aboveX ? 0 : sf_yOpensFromX;
+	}
+
+	private static int argmax(int m, int x, int y) {
+		if (m >= x && m >= y) return AlignmentPath.MATCH;
+		return x >= y ? AlignmentPath.GAP_IN_A : AlignmentPath.GAP_IN_B;
+	}
+
+	/**
+	 * One byte per cell, in direct buffers that are freed on {@link #close()}.
+	 */
+	private static final class Choices implements AutoCloseable {
+
+		private ByteBuffer[] m_segments;
+
+		Choices(long length) {
+			m_segments = new ByteBuffer[(int) ((length + sf_segmentMask) >>> sf_segmentShift)];
+			try {
+				for (int s = 0; s < m_segments.length; s++) {
+					m_segments[s] = ByteBuffer.allocateDirect((int) Math.min(1L << sf_segmentShift, length - ((long) s << sf_segmentShift)));
+				}
+			} catch (OutOfMemoryError e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Copies {@code bytes[0, length)} to cells {@code [index, index + length)}, which can span two buffers.
+		 */
+		void put(long index, @Nonnull byte[] bytes, int length) {
+			int done = 0;
+			while (done < length) {
+				ByteBuffer segment = m_segments[(int) ((index + done) >>> sf_segmentShift)];
+				int position = (int) ((index + done) & sf_segmentMask);
+				int n = Math.min(length - done, segment.capacity() - position);
+				segment.position(position);
+				segment.put(bytes, done, n);
+				done += n;
+			}
+		}
+
+		byte get(long index) {
+			return m_segments[(int) (index >>> sf_segmentShift)].get((int) (index & sf_segmentMask));
+		}
+
+		@Override
+		public void close() {
+			ByteBuffer[] segments = m_segments;
+			// a freed buffer can't be read safely, so drop every reference first
+			m_segments = null;
+			for (ByteBuffer segment : segments) {
+				if (segment != null) sf_free.accept(segment);
+			}
+		}
+	}
+
+	/**
+	 * Finds the JDK's internal way to free a direct buffer immediately. Java 9 and later have {@code Unsafe.invokeCleaner};
+	 * Java 8 exposes the buffer's cleaner. If neither is available, the buffer is left to the garbage collector.
+	 */
+	@Nonnull
+	private static Consumer<ByteBuffer> findFree() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			return buffer -> {
+				try {
+					invokeCleaner.invoke(unsafe, buffer);
+				} catch (ReflectiveOperationException ignored) {
+					// freed by the garbage collector instead
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException ignored) {
+			// not Java 9 or later
+		}
+		try {
+			Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> {
+				try {
+					clean.invoke(cleaner.invoke(buffer));
+				} catch (ReflectiveOperationException ignored) {
+					// freed by the garbage collector instead
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException ignored) {
+			return buffer -> {};
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Splits work over indices into one contiguous range per worker.
+ * @author Douglas Myers-Turnbull
+ */
+final class Parallel {
+
+	private Parallel() {}
+
+	@FunctionalInterface
+	interface RangeTask {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Runs {@code task} over {@code [0, n)}, split across as many workers as {@code executor} has threads,
+	 * and waits for all of them.
+	 * @param executor If null, runs everything on the calling thread
+	 */
+	static void forRanges(@Nullable Executor executor, @Nonnegative int n, @Nonnull RangeTask task) {
+		int nWorkers = executor == null ? 1 : Math.min(n, parallelism(executor));
+		if (nWorkers <= 1) {
+			task.run(0, n);
+			return;
+		}
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[nWorkers];
+		for (int w = 0; w < nWorkers; w++) {
+			int from = (int) ((long) n * w / nWorkers), to = (int) ((long) n * (w + 1) / nWorkers);
+			futures[w] = CompletableFuture.runAsync(() -> task.run(from, to), executor);
+		}
+		CompletableFuture.allOf(futures).join();
+	}
+
+	/**
+	 * Runs {@code task} for every index in {@code [0, n)}, handing indices out one at a time so that uneven tasks balance,
+	 * and waits for all of them. A {@link ForkJoinPool} splits the indices recursively, so idle threads steal work;
+	 * other executors get one worker per thread, each taking the next index from a shared counter.
+	 * @param executor If null, runs everything on the calling thread
+	 */
+	static void forEach(@Nullable Executor executor, @Nonnegative int n, @Nonnull IntConsumer task) {
+		if (executor instanceof ForkJoinPool) {
+			if (n > 0) ((ForkJoinPool) executor).invoke(new Split(0, n, task));
+		} else if (executor == null) {
+			for (int i = 0; i < n; i++) {
+				task.accept(i);
+			}
+		} else {
+			AtomicInteger next = new AtomicInteger();
+			forRanges(executor, Math.min(n, parallelism(executor)), (from, to) -> {
+				for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+					task.accept(i);
+				}
+			});
+		}
+	}
+
+	static int parallelism(@Nonnull Executor executor) {
+		if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getParallelism();
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static final class Split extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int m_from;
+		private final int m_to;
+		private final IntConsumer m_task;
+
+		private Split(int from, int to, @Nonnull IntConsumer task) {
+			m_from = from;
+			m_to = to;
+			m_task = task;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from == 1) {
+				m_task.accept(m_from);
+			} else {
+				int middle = (m_from + m_to) >>> 1;
+				invokeAll(new Split(m_from, middle, m_task), new Split(middle, m_to, m_task));
+			}
+		}
+	}
+
+}
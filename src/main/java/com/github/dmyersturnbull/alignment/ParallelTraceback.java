@@ -0,0 +1,206 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Finds the same alignment as {@link LinearSpaceAligner}, on all of the threads of a {@link ForkJoinPool}.
+ *
+ * After a subproblem is split at its middle row, its two halves are independent, so they're solved as separate fork-join tasks.
+ * That alone can't do better than halving the time, since the first split passes over the whole matrix, so the forward
+ * and backward passes of large subproblems are also filled in tiles by a {@link TiledSweep}, as in {@link TiledKernel}.
+ * The backward pass runs from the bottom-right corner, so it's filled in the same way with its rows and columns counted backward.
+ * Every cell and every choice of split is calculated exactly as in {@link LinearSpaceAligner}, so the alignment is identical.
+ * Small subproblems are handed to the {@link LinearSpaceAligner} of whichever thread runs them, and each split keeps only
+ * its two frontiers, so memory stays {@code O(n + m)} per thread.
+ * @author Douglas Myers-Turnbull
+ */
+@ThreadSafe
+final class ParallelTraceback {
+
+	/**
+	 * Below this many cells, a whole alignment is solved on one thread.
+	 */
+	static final long MIN_CELLS = TiledKernel.MIN_CELLS;
+
+	private final SubstitutionTable<?> m_table;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final EndGaps m_endGaps;
+	private final Supplier<LinearSpaceAligner> m_aligners;
+	private final TiledSweep m_sweep;
+	// subproblems with fewer cells are solved by one thread; larger ones fork their halves
+	private final long m_minForkCells;
+	// subproblems with fewer cells are split by one thread; larger ones fill tiles
+	private final long m_minTiledCells;
+
+	/**
+	 * @param aligners Returns the {@link LinearSpaceAligner} of the current thread, with the same parameters
+	 */
+	ParallelTraceback(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull EndGaps endGaps,
+			@Nonnull Supplier<LinearSpaceAligner> aligners) {
+		this(table, gop, gep, global, endGaps, aligners, 512, 2048);
+	}
+
+	/**
+	 * Smaller tiles also lower the sizes at which subproblems are forked and tiled, so that tests can use short sequences.
+	 */
+	ParallelTraceback(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull EndGaps endGaps,
+			@Nonnull Supplier<LinearSpaceAligner> aligners, @Nonnegative int tileRows, @Nonnegative int tileCols) {
+		m_table = table;
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_endGaps = endGaps;
+		m_aligners = aligners;
+		m_sweep = new TiledSweep(table, gop, gep, tileRows, tileCols);
+		m_minForkCells = (long) tileRows * tileCols / 4;
+		m_minTiledCells = 4L * tileRows * tileCols;
+	}
+
+	/**
+	 * @return Whether sequences of these lengths are large enough to be worth splitting across threads
+	 */
+	boolean applies(@Nonnegative int aLength, @Nonnegative int bLength) {
+		return (long) aLength * bLength >= MIN_CELLS;
+	}
+
+	/**
+	 * Same as {@link LinearSpaceAligner#align(byte[], byte[])}. For local alignment or free end gaps,
+	 * the window is still located on the calling thread, and only the traceback inside it is split.
+	 */
+	@Nonnull
+	AlignmentPath align(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnull ForkJoinPool pool) {
+		if (m_global && m_endGaps.isNone()) {
+			return pool.invoke(new Solve(a, b, 0, a.length, 0, b.length, AlignmentPath.MATCH, LinearSpaceAligner.ANY_STATE, pool));
+		}
+		AlignmentHit hit = m_aligners.get().locate(a, b);
+		AlignmentPath path = pool.invoke(new Solve(a, b, hit.getAStart(), hit.getAEnd(), hit.getBStart(), hit.getBEnd(),
+				AlignmentPath.MATCH, LinearSpaceAligner.ANY_STATE, pool));
+		assert path.getScore() == hit.getScore() : "Best score " + hit.getScore() + " but aligned with " + path.getScore();
+		return path;
+	}
+
+	/**
+	 * Same as {@link LinearSpaceAligner#split}, with both passes filled in tiles.
+	 */
+	@Nonnull
+	private int[] split(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd,
+			byte before, byte end, @Nonnull ForkJoinPool pool) {
+
+		int nCols = bEnd - bStart, middle = aStart + (aEnd - aStart) / 2;
+		int gop = m_gop, gep = m_gep, open = gop + gep;
+
+		// the forward pass starts from the top row and left column of LinearSpaceAligner.forward
+		int[][] top = new int[3][nCols + 1], left = new int[3][middle - aStart + 1];
+		top[0][0] = left[0][0] = before == AlignmentPath.MATCH ? 0 : NEGATIVE_INFINITY;
+		top[1][0] = left[1][0] = before == AlignmentPath.GAP_IN_A ? 0 : NEGATIVE_INFINITY;
+		top[2][0] = left[2][0] = before == AlignmentPath.GAP_IN_B ? 0 : NEGATIVE_INFINITY;
+		for (int col = 1; col <= nCols; col++) {
+			top[0][col] = top[2][col] = NEGATIVE_INFINITY;
+			top[1][col] = Math.max(open + Math.max(top[0][col - 1], top[2][col - 1]), gep + top[1][col - 1]);
+		}
+		for (int row = 1; row < left[0].length; row++) {
+			left[0][row] = left[1][row] = NEGATIVE_INFINITY;
+			left[2][row] = Math.max(open + Math.max(left[0][row - 1], left[1][row - 1]), gep + left[2][row - 1]);
+		}
+		m_sweep.sweep(a, b, aStart, middle, bStart, bEnd, TiledSweep.Pass.FORWARD, top, left, pool);
+
+		// the backward pass counts rows up from the bottom and columns left from the right, as in LinearSpaceAligner.backward
+		int[][] bottom = new int[3][nCols + 1], right = new int[3][aEnd - middle + 1];
+		bottom[0][0] = right[0][0] = end == LinearSpaceAligner.ANY_STATE || end == AlignmentPath.MATCH ? 0 : NEGATIVE_INFINITY;
+		bottom[1][0] = right[1][0] = end == LinearSpaceAligner.ANY_STATE || end == AlignmentPath.GAP_IN_A ? 0 : NEGATIVE_INFINITY;
+		bottom[2][0] = right[2][0] = end == LinearSpaceAligner.ANY_STATE || end == AlignmentPath.GAP_IN_B ? 0 : NEGATIVE_INFINITY;
+		for (int col = 1; col <= nCols; col++) {
+			int x = gep + bottom[1][col - 1];
+			bottom[0][col] = bottom[2][col] = Math.max(NEGATIVE_INFINITY, gop + x);
+			bottom[1][col] = Math.max(NEGATIVE_INFINITY, x);
+		}
+		for (int row = 1; row < right[0].length; row++) {
+			int y = gep + right[2][row - 1];
+			right[0][row] = right[1][row] = Math.max(NEGATIVE_INFINITY, gop + y);
+			right[2][row] = Math.max(NEGATIVE_INFINITY, y);
+		}
+		m_sweep.sweep(a, b, middle, aEnd, bStart, bEnd, TiledSweep.Pass.BACKWARD, bottom, right, pool);
+		for (int[] state : bottom) {
+			for (int i = 0, j = nCols; i < j; i++, j--) {
+				int tmp = state[i];
+				state[i] = state[j];
+				state[j] = tmp;
+			}
+		}
+
+		return LinearSpaceAligner.bestCrossing(top[0], top[1], top[2], bottom[0], bottom[1], bottom[2], middle, nCols);
+	}
+
+	/**
+	 * Aligns {@code a[aStart, aEnd)} with {@code b[bStart, bEnd)}, like {@link LinearSpaceAligner#solve}.
+	 */
+	private final class Solve extends RecursiveTask<AlignmentPath> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] m_a, m_b;
+		private final int m_aStart, m_aEnd, m_bStart, m_bEnd;
+		private final byte m_before, m_end;
+		private final ForkJoinPool m_pool;
+
+		private Solve(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, byte before, byte end,
+				@Nonnull ForkJoinPool pool) {
+			m_a = a;
+			m_b = b;
+			m_aStart = aStart;
+			m_aEnd = aEnd;
+			m_bStart = bStart;
+			m_bEnd = bEnd;
+			m_before = before;
+			m_end = end;
+			m_pool = pool;
+		}
+
+		@Override
+		protected AlignmentPath compute() {
+			int nRows = m_aEnd - m_aStart, nCols = m_bEnd - m_bStart;
+			long nCells = (long) (nRows + 1) * (nCols + 1);
+			if (nRows <= 1 || nCells <= LinearSpaceAligner.MAX_FULL_CELLS || nCells < m_minForkCells) {
+				return m_aligners.get().solve(m_a, m_b, m_aStart, m_aEnd, m_bStart, m_bEnd, m_before, m_end);
+			}
+			int[] split = nCells >= m_minTiledCells && m_table.isBounded(nRows, nCols, m_gop, m_gep, SubstitutionTable.INT_LIMIT)
+					? split(m_a, m_b, m_aStart, m_aEnd, m_bStart, m_bEnd, m_before, m_end, m_pool)
+					: m_aligners.get().split(m_a, m_b, m_aStart, m_aEnd, m_bStart, m_bEnd, m_before, m_end);
+			int middle = split[0], col = m_bStart + split[1];
+			byte state = (byte) split[2];
+			Solve top = new Solve(m_a, m_b, m_aStart, middle, m_bStart, col, m_before, state, m_pool);
+			Solve bottom = new Solve(m_a, m_b, middle, m_aEnd, col, m_bEnd, state, m_end, m_pool);
+			top.fork();
+			AlignmentPath second = bottom.compute();
+			AlignmentPath first = top.join();
+			assert first.getScore() + second.getScore() == split[3];
+			return new AlignmentPath.Builder().append(first).append(second).build(m_aStart, m_bStart, first.getScore() + second.getScore());
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Scores a sequence against random permutations of another.
+ *
+ * Simulations are grouped into blocks of {@link #BLOCK_SIZE}, and each block draws from its own random stream, derived
+ * from the seed and the block's index when the block starts. So the scores depend only on the seed, not on whether or how
+ * the blocks are spread across threads. Each thread keeps a {@link Worker} with its own {@link FastScorer} and permutation
+ * buffers, and passes permutations to the kernel in batches, which an {@link InterSequenceKernel} scores in one pass.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+final class PermutationTest {
+
+	static final int BLOCK_SIZE = 64;
+
+	/**
+	 * Permutations are handed to {@link FastScorer#scoreAll} this many at a time.
+	 */
+	static final int BATCH_SIZE = InterSequenceKernel.LANES;
+
+	private static final long sf_golden = 0x9e3779b97f4a7c15L;
+
+	private final Supplier<Worker> m_workers;
+	private final Executor m_executor;
+
+	/**
+	 * @param workers Returns the {@link Worker} of the current thread
+	 * @param executor Runs the simulations in parallel; if null, they run on the calling thread
+	 */
+	PermutationTest(@Nonnull Supplier<Worker> workers, @Nullable Executor executor) {
+		m_workers = workers;
+		m_executor = executor;
+	}
+
+	/**
+	 * @return The score of {@code a} against each of {@code nSimulations} permutations of {@code b}
+	 */
+	@Nonnull
+	int[] run(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnegative int nSimulations, long seed) {
+		return run(a, b, nSimulations, seed, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Same as {@link #run(byte[], byte[], int, long)}, but scores below {@code threshold} are only known to be below it,
+	 * which is all a p-value needs. Kernels can then abandon a permutation partway, as {@link ScoreKernel} does.
+	 */
+	@Nonnull
+	int[] run(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnegative int nSimulations, long seed, int threshold) {
+
+		int[] scores = new int[nSimulations];
+		Parallel.forRanges(m_executor, nBlocks(nSimulations), (fromBlock, toBlock) -> runBlocks(a, b, threshold, scores, seed, fromBlock, toBlock));
+		return scores;
+	}
+
+	/**
+	 * Runs simulations in rounds of one block per thread, until {@code rule} says to stop.
+	 * The rule is checked after every simulation in order, so the simulations run are the first ones
+	 * {@link #run(byte[], byte[], int, long) run} would, wherever the blocks ran.
+	 * @return The scores of the simulations run, at most {@code maxSimulations}
+	 */
+	@Nonnull
+	int[] runUntil(@Nonnull byte[] a, @Nonnull byte[] b, int observed, @Nonnegative int maxSimulations, long seed, @Nonnull StoppingRule rule) {
+
+		int[] scores = new int[maxSimulations];
+		int nBlocks = nBlocks(maxSimulations);
+		int roundSize = m_executor == null ? 1 : Parallel.parallelism(m_executor);
+
+		int nExceeding = 0;
+		for (int round = 0; round < nBlocks; round += roundSize) {
+			int fromBlock = round, toBlock = Math.min(nBlocks, round + roundSize);
+			Parallel.forRanges(m_executor, toBlock - fromBlock, (from, to) -> runBlocks(a, b, observed, scores, seed, fromBlock + from, fromBlock + to));
+			for (int i = fromBlock * BLOCK_SIZE; i < Math.min(maxSimulations, toBlock * BLOCK_SIZE); i++) {
+				if (scores[i] >= observed) nExceeding++;
+				if (rule.isDone(i + 1, nExceeding)) return Arrays.copyOf(scores, i + 1);
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * @return The permutations of {@code b} that {@link #run(byte[], byte[], int, long) run} would score, in order
+	 */
+	@Nonnull
+	static byte[][] permutations(@Nonnull byte[] b, @Nonnegative int nSimulations, long seed) {
+		byte[][] permutations = new byte[nSimulations][];
+		byte[] permuted = new byte[b.length];
+		for (int block = 0; block < nBlocks(nSimulations); block++) {
+			SplittableRandom random = stream(seed, block);
+			System.arraycopy(b, 0, permuted, 0, b.length);
+			for (int i = block * BLOCK_SIZE; i < Math.min(nSimulations, (block + 1) * BLOCK_SIZE); i++) {
+				shuffle(permuted, random);
+				permutations[i] = permuted.clone();
+			}
+		}
+		return permutations;
+	}
+
+	private static int nBlocks(@Nonnegative int nSimulations) {
+		return (nSimulations + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+
+	/**
+	 * @return The random stream of {@code block}, which depends only on {@code seed} and {@code block}, so that a block
+	 * can start without the ones before it
+	 */
+	@Nonnull
+	private static SplittableRandom stream(long seed, @Nonnegative int block) {
+		// the same mixing SplittableRandom uses for its own seeds
+		long z = seed + (block + 1L) * sf_golden;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return new SplittableRandom(z ^ (z >>> 31));
+	}
+
+	/**
+	 * Permutes {@code b} in place in the worker's buffer and copies each permutation into its batch,
+	 * so repeated calls with the same length of {@code b} allocate only one random stream per block.
+	 */
+	private void runBlocks(@Nonnull byte[] a, @Nonnull byte[] b, int threshold, @Nonnull int[] scores,
+	                       long seed, int fromBlock, int toBlock) {
+		Worker worker = m_workers.get();
+		worker.ensureLength(b.length);
+		FastScorer kernel = worker.m_kernel;
+		byte[] permuted = worker.m_permuted;
+		byte[][] batch = worker.m_batch;
+		for (int block = fromBlock; block < toBlock; block++) {
+			SplittableRandom random = stream(seed, block);
+			System.arraycopy(b, 0, permuted, 0, b.length); // start each block from b, wherever the block runs
+			int end = Math.min(scores.length, (block + 1) * BLOCK_SIZE);
+			for (int first = block * BLOCK_SIZE; first < end; first += BATCH_SIZE) {
+				int count = Math.min(BATCH_SIZE, end - first);
+				for (int i = 0; i < count; i++) {
+					shuffle(permuted, random);
+					System.arraycopy(permuted, 0, batch[i], 0, b.length);
+				}
+				kernel.scoreAll(a, batch, count, threshold, scores, first);
+			}
+		}
+	}
+
+	/**
+	 * Fisher-Yates shuffle, in place.
+	 */
+	static void shuffle(@Nonnull byte[] array, @Nonnull SplittableRandom random) {
+		for (int i = array.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			byte tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+
+	/**
+	 * One thread's kernel and permutation buffers, reused across calls to {@link PermutationTest}.
+	 */
+	@NotThreadSafe
+	static final class Worker {
+
+		private final FastScorer m_kernel;
+		private byte[] m_permuted = new byte[0];
+		private byte[][] m_batch = new byte[BATCH_SIZE][0];
+
+		Worker(@Nonnull FastScorer kernel) {
+			m_kernel = kernel;
+		}
+
+		private void ensureLength(@Nonnegative int length) {
+			if (m_permuted.length == length) return;
+			m_permuted = new byte[length];
+			m_batch = new byte[BATCH_SIZE][length];
+		}
+	}
+
+}
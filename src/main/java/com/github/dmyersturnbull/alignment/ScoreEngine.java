@@ -0,0 +1,59 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+/**
+ * An implementation of {@link SequenceAligner#alignFast}. All of them calculate the same scores.
+ * @author Douglas Myers-Turnbull
+ */
+public enum ScoreEngine {
+
+	/**
+	 * Fills the matrices one row at a time.
+	 */
+	SCALAR,
+
+	/**
+	 * Farrar's striped query profile, with lanes as fixed-width arrays that the JIT can vectorize.
+	 * Fastest when aligning one sequence A against many sequences B.
+	 */
+	STRIPED,
+
+	/**
+	 * Scores permutation tests {@link InterSequenceKernel#LANES} permutations at a time, one per lane,
+	 * which works because every permutation has the same length. Single alignments use {@link #SCALAR}.
+	 */
+	INTER_SEQUENCE,
+
+	/**
+	 * The wavefront algorithm, whose cost grows with the alignment score instead of the size of the matrix, for global
+	 * alignment of near-identical sequences. Also used by {@link SequenceAligner#align}.
+	 * Only applies to pairs whose residues all score the same as matches and the same as mismatches; local alignment,
+	 * other pairs, and pairs too different for the wavefronts to pay off use {@link #SCALAR}.
+	 * A traceback keeps every wavefront, up to about 3 MB per thread; alignments that would need more are found in
+	 * linear space instead.
+	 */
+	WAVEFRONT,
+
+	/**
+	 * Myers' bit-vector algorithm, 64 cells per word, for edit distance (see {@link SequenceAligner#dnaEditDistance()}).
+	 * Only applies to global alignment, optionally with {@link EndGaps#freeB()}, with a gap opening penalty of 0 and every
+	 * residue pair scoring either 0 or the gap extension penalty; anything else uses {@link #SCALAR}.
+	 */
+	BIT_PARALLEL
+
+}
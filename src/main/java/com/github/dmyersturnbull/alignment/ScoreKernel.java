@@ -0,0 +1,336 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Calculates affine-gap (Gotoh) alignment scores over sequences encoded by a {@link SubstitutionTable}.
+ * Only the score is recorded, so only two rows of the dynamic programming matrices are kept, and they trade places
+ * after each row instead of being copied. The rows are kept between calls, so use one instance per thread.
+ *
+ * The three states are M (ends in a match or mismatch), X (ends in a gap in {@code a}), and Y (ends in a gap in {@code b}).
+ * A gap of length {@code k} scores {@code gop + k * gep}; both penalties are nonpositive, as returned by
+ * {@link org.biojava.nbio.alignment.template.GapPenalty}.
+ *
+ * Rather than checking every addition for overflow, the kernel bounds the magnitude of every value in advance from the
+ * sequence lengths, the substitution scores, and the penalties. If the bound fits comfortably in an {@code int}, it uses
+ * plain {@code int} arithmetic; otherwise it uses {@code long}s, and throws an {@link ArithmeticException} only if
+ * the score itself doesn't fit in an {@code int}.
+ *
+ * With {@link EndGaps}, a global alignment can also start anywhere on the top or left edge of the matrix,
+ * and end anywhere on the bottom or right edge, instead of only in the corners.
+ *
+ * With a {@link #scoreAtLeast threshold}, every few rows the kernel bounds the best score that any alignment through the
+ * current row could still reach: each cell's value, plus the most that the residues left in either sequence could add,
+ * plus (for global alignment) one extension penalty for each residue by which the lengths left differ. Once the bound
+ * falls below the threshold, the kernel stops and returns the bound.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class ScoreKernel implements FastScorer {
+
+	/**
+	 * Stands in for minus infinity; far enough from {@link Integer#MIN_VALUE} that adding a penalty can't overflow.
+	 */
+	static final int NEGATIVE_INFINITY = Integer.MIN_VALUE / 2;
+
+	private static final long sf_longNegativeInfinity = Long.MIN_VALUE / 2;
+
+	/**
+	 * Rows between checks of the bound; a power of 2.
+	 */
+	private static final int sf_boundInterval = 8;
+
+	private final SubstitutionTable<?> m_table;
+	private final int[] m_scores;
+	private final int m_size;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+
+	// where an alignment can start and end: A runs down the rows and B across the columns
+	private final boolean m_startTop, m_startLeft, m_endBottom, m_endRight;
+
+	private int[] m_currentM = new int[0], m_currentX = new int[0], m_currentY = new int[0];
+	private int[] m_aboveM = new int[0], m_aboveX = new int[0], m_aboveY = new int[0];
+
+	// for scoreAtLeast: the most that a[i, n) and b[j, m) can add, and the best score of each code against the other sequence
+	private int[] m_remainingA = new int[0], m_remainingB = new int[0];
+	private final int[] m_bestAgainstA, m_bestAgainstB;
+	private final boolean[] m_inA, m_inB;
+
+	/**
+	 * @param global Needleman-Wunsch if true; otherwise Smith-Waterman
+	 */
+	ScoreKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global) {
+		this(table, gop, gep, global, EndGaps.none());
+	}
+
+	/**
+	 * @param endGaps Ignored for local alignment
+	 */
+	ScoreKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnull EndGaps endGaps) {
+		assert gop < 1 && gep < 1;
+		m_table = table;
+		m_scores = table.getScores();
+		m_size = table.size();
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_bestAgainstA = new int[m_size];
+		m_bestAgainstB = new int[m_size];
+		m_inA = new boolean[m_size];
+		m_inB = new boolean[m_size];
+		m_startTop = !global || endGaps.isBStartFree();
+		m_startLeft = !global || endGaps.isAStartFree();
+		m_endBottom = global && endGaps.isBEndFree();
+		m_endRight = global && endGaps.isAEndFree();
+	}
+
+	@Override
+	public int score(@Nonnull byte[] a, @Nonnull byte[] b) {
+		return scoreAtLeast(a, b, Integer.MIN_VALUE);
+	}
+
+	@Override
+	public int scoreAtLeast(@Nonnull byte[] a, @Nonnull byte[] b, int threshold) {
+		int aLength = a.length, bLength = b.length;
+		if (aLength == 0 || bLength == 0) {
+			if (!m_global || aLength == bLength) return 0;
+			// the other sequence is left entirely unaligned
+			if (aLength == 0 ? m_startTop || m_endBottom : m_startLeft || m_endRight) return 0;
+			return Math.toIntExact(m_gop + (long) (aLength + bLength) * m_gep);
+		}
+		if (m_table.isBounded(aLength, bLength, m_gop, m_gep, SubstitutionTable.INT_LIMIT)) return scoreInts(a, b, threshold);
+		return Math.toIntExact(scoreLongs(a, b));
+	}
+
+	/**
+	 * @param threshold Stops once the score can't reach this; {@link Integer#MIN_VALUE} never stops
+	 */
+	private int scoreInts(@Nonnull byte[] a, @Nonnull byte[] b, int threshold) {
+
+		int aLength = a.length, bLength = b.length;
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep, open = gop + gep;
+		boolean global = m_global;
+
+		boolean startTop = m_startTop, startLeft = m_startLeft, endRight = m_endRight;
+
+		ensureCapacity(bLength + 1);
+		int[] currentM = m_currentM, currentX = m_currentX, currentY = m_currentY;
+		int[] aboveM = m_aboveM, aboveX = m_aboveX, aboveY = m_aboveY;
+		aboveM[0] = 0;
+		aboveX[0] = aboveY[0] = NEGATIVE_INFINITY;
+		for (int col = 1; col <= bLength; col++) {
+			aboveM[col] = startTop ? 0 : NEGATIVE_INFINITY;
+			aboveX[col] = startTop ? NEGATIVE_INFINITY : gop + col * gep;
+			aboveY[col] = NEGATIVE_INFINITY;
+		}
+
+		boolean bounded = threshold > Integer.MIN_VALUE;
+		if (bounded) fillRemaining(a, b);
+		int localBest = 0, bound = Integer.MAX_VALUE;
+		int rightBest = endRight ? Math.max(aboveM[bLength], aboveX[bLength]) : NEGATIVE_INFINITY;
+		for (int row = 1; row <= aLength; row++) {
+			int offset = a[row - 1] * size;
+			currentM[0] = startLeft ? 0 : NEGATIVE_INFINITY;
+			currentX[0] = NEGATIVE_INFINITY;
+			currentY[0] = startLeft ? NEGATIVE_INFINITY : gop + row * gep;
+			for (int col = 1; col <= bLength; col++) {
+
+				int diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+				int m = scores[offset + b[col - 1]] + diagonal;
+				if (!global && m < 0) m = 0;
+				currentM[col] = m;
+
+				currentX[col] = Math.max(open + Math.max(currentM[col - 1], currentY[col - 1]), gep + currentX[col - 1]);
+				currentY[col] = Math.max(open + Math.max(aboveM[col], aboveX[col]), gep + aboveY[col]);
+
+				if (m > localBest) localBest = m;
+			}
+			if (endRight) rightBest = Math.max(rightBest, Math.max(currentM[bLength], Math.max(currentX[bLength], currentY[bLength])));
+			int[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+
+			if (bounded && (row & sf_boundInterval - 1) == 0 && row < aLength) {
+				bound = upperBound(aboveM, aboveX, aboveY, row, aLength, bLength, global ? rightBest : localBest);
+				if (bound < threshold) break;
+			}
+		}
+		m_currentM = currentM;
+		m_currentX = currentX;
+		m_currentY = currentY;
+		m_aboveM = aboveM;
+		m_aboveX = aboveX;
+		m_aboveY = aboveY;
+
+		if (bound < threshold) return bound;
+		if (global) return Math.max(rightBest, bottomBest(aboveM, aboveX, aboveY, bLength));
+		return localBest;
+	}
+
+	/**
+	 * @return The best score in the last row: in its last cell, or anywhere in it if the end of B is free
+	 */
+	private int bottomBest(@Nonnull int[] m, @Nonnull int[] x, @Nonnull int[] y, int bLength) {
+		int best = Math.max(m[bLength], Math.max(x[bLength], y[bLength]));
+		for (int col = 0; m_endBottom && col < bLength; col++) {
+			best = Math.max(best, Math.max(m[col], Math.max(x[col], y[col])));
+		}
+		return best;
+	}
+
+	/**
+	 * Same as {@link #scoreInts}, for sequences so long (or penalties so large) that an {@code int} might overflow.
+	 */
+	private long scoreLongs(@Nonnull byte[] a, @Nonnull byte[] b) {
+
+		int aLength = a.length, bLength = b.length;
+		int[] scores = m_scores;
+		int size = m_size;
+		long gop = m_gop, gep = m_gep, open = gop + gep;
+		boolean global = m_global;
+
+		long[] currentM = new long[bLength + 1], currentX = new long[bLength + 1], currentY = new long[bLength + 1];
+		long[] aboveM = new long[bLength + 1], aboveX = new long[bLength + 1], aboveY = new long[bLength + 1];
+		aboveM[0] = 0;
+		aboveX[0] = aboveY[0] = sf_longNegativeInfinity;
+		for (int col = 1; col <= bLength; col++) {
+			aboveM[col] = m_startTop ? 0 : sf_longNegativeInfinity;
+			aboveX[col] = m_startTop ? sf_longNegativeInfinity : gop + col * gep;
+			aboveY[col] = sf_longNegativeInfinity;
+		}
+
+		long localBest = 0;
+		long rightBest = m_endRight ? Math.max(aboveM[bLength], aboveX[bLength]) : sf_longNegativeInfinity;
+		for (int row = 1; row <= aLength; row++) {
+			int offset = a[row - 1] * size;
+			currentM[0] = m_startLeft ? 0 : sf_longNegativeInfinity;
+			currentX[0] = sf_longNegativeInfinity;
+			currentY[0] = m_startLeft ? sf_longNegativeInfinity : gop + row * gep;
+			for (int col = 1; col <= bLength; col++) {
+
+				long diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+				long m = scores[offset + b[col - 1]] + diagonal;
+				if (!global && m < 0) m = 0;
+				currentM[col] = m;
+
+				currentX[col] = Math.max(open + Math.max(currentM[col - 1], currentY[col - 1]), gep + currentX[col - 1]);
+				currentY[col] = Math.max(open + Math.max(aboveM[col], aboveX[col]), gep + aboveY[col]);
+
+				if (m > localBest) localBest = m;
+			}
+			if (m_endRight) rightBest = Math.max(rightBest, Math.max(currentM[bLength], Math.max(currentX[bLength], currentY[bLength])));
+			long[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+		}
+
+		if (global) {
+			long best = Math.max(rightBest, Math.max(aboveM[bLength], Math.max(aboveX[bLength], aboveY[bLength])));
+			for (int col = 0; m_endBottom && col < bLength; col++) {
+				best = Math.max(best, Math.max(aboveM[col], Math.max(aboveX[col], aboveY[col])));
+			}
+			return best;
+		}
+		return localBest;
+	}
+
+	/**
+	 * Fills {@link #m_remainingA} and {@link #m_remainingB}: no alignment of {@code a[i, n)} with any part of {@code b}
+	 * can score more than {@code m_remainingA[i]}, since each residue adds at most its best score against a residue of {@code b}.
+	 */
+	private void fillRemaining(@Nonnull byte[] a, @Nonnull byte[] b) {
+		int[] scores = m_scores, bestAgainstA = m_bestAgainstA, bestAgainstB = m_bestAgainstB;
+		int size = m_size;
+		boolean[] inA = m_inA, inB = m_inB;
+		Arrays.fill(inA, false);
+		Arrays.fill(inB, false);
+		for (byte x : a) {
+			inA[x] = true;
+		}
+		for (byte y : b) {
+			inB[y] = true;
+		}
+		for (int code = 0; code < size; code++) {
+			int againstA = 0, againstB = 0;
+			for (int other = 0; other < size; other++) {
+				if (inA[other]) againstA = Math.max(againstA, scores[other * size + code]);
+				if (inB[other]) againstB = Math.max(againstB, scores[code * size + other]);
+			}
+			bestAgainstA[code] = againstA;
+			bestAgainstB[code] = againstB;
+		}
+		if (m_remainingA.length <= a.length) m_remainingA = new int[a.length + 1];
+		if (m_remainingB.length <= b.length) m_remainingB = new int[b.length + 1];
+		m_remainingA[a.length] = 0;
+		for (int i = a.length - 1; i >= 0; i--) {
+			m_remainingA[i] = m_remainingA[i + 1] + bestAgainstB[a[i]];
+		}
+		m_remainingB[b.length] = 0;
+		for (int j = b.length - 1; j >= 0; j--) {
+			m_remainingB[j] = m_remainingB[j + 1] + bestAgainstA[b[j]];
+		}
+	}
+
+	/**
+	 * @param best The best score of an alignment that already ended
+	 * @return An upper bound on the final score, given the values of row {@code row}
+	 */
+	private int upperBound(@Nonnull int[] m, @Nonnull int[] x, @Nonnull int[] y, int row, int aLength, int bLength, int best) {
+		int[] remainingA = m_remainingA, remainingB = m_remainingB;
+		int remaining = remainingA[row];
+		long bound = best;
+		// an alignment could also start from nothing below this row
+		if (m_startLeft) bound = Math.max(bound, Math.min(remaining, remainingB[0]));
+		boolean toCorner = m_global && !m_endBottom && !m_endRight;
+		for (int col = 0; col <= bLength; col++) {
+			long cell = (long) Math.max(m[col], Math.max(x[col], y[col])) + Math.min(remaining, remainingB[col]);
+			if (toCorner) cell += (long) m_gep * Math.abs(aLength - row - bLength + col);
+			if (cell > bound) bound = cell;
+		}
+		return (int) Math.max(Integer.MIN_VALUE, bound);
+	}
+
+	private void ensureCapacity(int length) {
+		if (m_aboveM.length >= length) return;
+		m_currentM = new int[length];
+		m_currentX = new int[length];
+		m_currentY = new int[length];
+		m_aboveM = new int[length];
+		m_aboveX = new int[length];
+		m_aboveY = new int[length];
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A symmetric matrix of alignment scores, from {@link SequenceAligner#alignFastAllPairs}.
+ * Only the upper triangle, including the diagonal, is stored: row by row, as {@code n * (n + 1) / 2} ints.
+ * The matrix is either on the heap or in a file mapped into memory; a file holds exactly those ints, in little-endian order.
+ * @author Douglas Myers-Turnbull
+ */
+@ThreadSafe
+public final class ScoreMatrix {
+
+	/**
+	 * Each buffer holds {@code 2^28} ints, under the 2 GB limit of a single mapping.
+	 */
+	private static final int sf_segmentShift = 28;
+	private static final int sf_segmentMask = (1 << sf_segmentShift) - 1;
+
+	private final int m_size;
+	private final IntBuffer[] m_segments;
+	private final MappedByteBuffer[] m_mapped;
+
+	private ScoreMatrix(int size, @Nonnull IntBuffer[] segments, @Nonnull MappedByteBuffer[] mapped) {
+		m_size = size;
+		m_segments = segments;
+		m_mapped = mapped;
+	}
+
+	@Nonnull
+	static ScoreMatrix onHeap(@Nonnegative int size) {
+		long length = length(size);
+		IntBuffer[] segments = new IntBuffer[nSegments(length)];
+		for (int s = 0; s < segments.length; s++) {
+			segments[s] = IntBuffer.allocate(segmentLength(length, s));
+		}
+		return new ScoreMatrix(size, segments, new MappedByteBuffer[0]);
+	}
+
+	/**
+	 * Maps {@code file}, creating it or resizing it as needed; the mapping stays valid after the file is closed.
+	 */
+	@Nonnull
+	static ScoreMatrix mapped(@Nonnegative int size, @Nonnull Path file) throws IOException {
+		long length = length(size);
+		IntBuffer[] segments = new IntBuffer[nSegments(length)];
+		MappedByteBuffer[] mapped = new MappedByteBuffer[segments.length];
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			channel.truncate(4 * length);
+			for (int s = 0; s < segments.length; s++) {
+				mapped[s] = channel.map(FileChannel.MapMode.READ_WRITE, 4L * s << sf_segmentShift, 4L * segmentLength(length, s));
+				mapped[s].order(ByteOrder.LITTLE_ENDIAN);
+				segments[s] = mapped[s].asIntBuffer();
+			}
+		}
+		return new ScoreMatrix(size, segments, mapped);
+	}
+
+	/**
+	 * @return The number of sequences
+	 */
+	@Nonnegative
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * @return The score of sequence {@code i} against sequence {@code j}, which is also the score of {@code j} against {@code i}
+	 */
+	public int get(@Nonnegative int i, @Nonnegative int j) {
+		long index = index(i, j);
+		return m_segments[(int) (index >>> sf_segmentShift)].get((int) (index & sf_segmentMask));
+	}
+
+	void set(@Nonnegative int i, @Nonnegative int j, int score) {
+		long index = index(i, j);
+		m_segments[(int) (index >>> sf_segmentShift)].put((int) (index & sf_segmentMask), score);
+	}
+
+	/**
+	 * Writes a mapped matrix out to its file; does nothing for a matrix on the heap.
+	 */
+	public void force() {
+		for (MappedByteBuffer buffer : m_mapped) {
+			buffer.force();
+		}
+	}
+
+	private long index(int i, int j) {
+		Preconditions.checkElementIndex(i, m_size);
+		Preconditions.checkElementIndex(j, m_size);
+		if (i > j) {
+			int tmp = i;
+			i = j;
+			j = tmp;
+		}
+		// rows before i hold n + (n - 1) + ... + (n - i + 1) cells
+		return (long) i * m_size - (long) i * (i - 1) / 2 + j - i;
+	}
+
+	private static long length(int size) {
+		Preconditions.checkArgument(size >= 0, "Size " + size + " is negative");
+		return (long) size * (size + 1) / 2;
+	}
+
+	private static int nSegments(long length) {
+		return (int) ((length + sf_segmentMask) >>> sf_segmentShift);
+	}
+
+	private static int segmentLength(long length, int segment) {
+		return (int) Math.min(1L << sf_segmentShift, length - ((long) segment << sf_segmentShift));
+	}
+
+	@Override
+	public String toString() {
+		return "ScoreMatrix{size=" + m_size + (m_mapped.length > 0 ? ", mapped" : "") + "}";
+	}
+
+}
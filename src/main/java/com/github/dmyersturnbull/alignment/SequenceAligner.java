@@ -17,12 +17,14 @@
 package com.github.dmyersturnbull.alignment;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import org.biojava.nbio.alignment.Alignments;
 import org.biojava.nbio.alignment.SimpleGapPenalty;
+import org.biojava.nbio.alignment.SimpleSequencePair;
 import org.biojava.nbio.alignment.SimpleSubstitutionMatrix;
 import org.biojava.nbio.alignment.SubstitutionMatrixHelper;
+import org.biojava.nbio.alignment.template.AlignedSequence;
 import org.biojava.nbio.alignment.template.GapPenalty;
-import org.biojava.nbio.alignment.template.PairwiseSequenceAligner;
 import org.biojava.nbio.alignment.template.SequencePair;
 import org.biojava.nbio.alignment.template.SubstitutionMatrix;
 import org.biojava.nbio.core.sequence.DNASequence;
@@ -35,15 +37,27 @@ import org.biojava.nbio.core.sequence.template.Compound;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
-import javax.validation.constraints.Size;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.ParameterizedType;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Performs global and local alignment on DNA sequences.
@@ -62,11 +76,12 @@ import java.util.function.Function;
  *
  * @author Douglas Myers-Turnbull
  */
-@Immutable
+@ThreadSafe
 public class SequenceAligner<S extends AbstractSequence<C>, C extends Compound> {
 
 	private static final int sf_defaultGapOpenPenalty = 11;
 	private static final int sf_defaultGapExtensionPenalty = 1;
+	private static final int sf_tileSize = 32;
 	private static final SubstitutionMatrix<NucleotideCompound> sf_defaultMatrix = SubstitutionMatrixHelper.getNuc4_4();
 
 	private final GapPenalty m_gapPenalty;
@@ -74,7 +89,27 @@ public class SequenceAligner<S extends AbstractSequence<C>, C extends Compound>
 	private final Function<String, S> m_creator;
 
 	private final SubstitutionMatrix<C> m_matrix;
+	private final SubstitutionTable<C> m_table;
 	private final Alignments.PairwiseSequenceAlignerType m_type;
+	private final ScoreEngine m_scoreEngine;
+	private final Band m_band;
+	private final EndGaps m_endGaps;
+
+	private final Executor m_executor;
+	private final Long m_seed;
+	private final NullDistributionCache m_nullCache;
+	private final int[] m_nullCacheParameters;
+	private final long m_maxPackedTracebackBytes;
+	private final TiledKernel m_tiledKernel;
+	private final ParallelTraceback m_parallelTraceback;
+
+	// identifies this aligner's workspaces; thread-local values must not refer back to the aligner, or a thread would keep it alive
+	private final Object m_workspaceOwner = new Object();
+	private final ThreadLocal<Workspace> m_workspaces = ThreadLocal.withInitial(this::newWorkspace);
+	private final ThreadLocal<LinearSpaceAligner> m_aligners = ThreadLocal.withInitial(this::newLinearSpaceAligner);
+	private final ThreadLocal<WavefrontAligner> m_wavefrontAligners = ThreadLocal.withInitial(this::newWavefrontAligner);
+	private final ThreadLocal<PackedTracebackAligner> m_packedAligners = ThreadLocal.withInitial(this::newPackedTracebackAligner);
+	private final ThreadLocal<PermutationTest.Worker> m_permutationWorkers = ThreadLocal.withInitial(() -> new PermutationTest.Worker(newKernel()));
 
 	@Nonnull
 	public static Builder<DNASequence, NucleotideCompound> dna(@Nonnull Alignments.PairwiseSequenceAlignerType type) {
@@ -86,11 +121,39 @@ public class SequenceAligner<S extends AbstractSequence<C>, C extends Compound>
 		return new Builder<>(SubstitutionMatrixHelper.getBlosum62(), type, ProteinSequence::new);
 	}
 
+	/**
+	 * Scores by edit distance: {@link #alignFast} returns minus the number of substitutions, insertions, and deletions,
+	 * using {@link ScoreEngine#BIT_PARALLEL}. With {@code .setEndGaps(EndGaps.freeB())}, it returns minus the edit distance
+	 * of A against its best match anywhere in B.
+	 */
+	@Nonnull
+	public static Builder<DNASequence, NucleotideCompound> dnaEditDistance() {
+		SubstitutionMatrix<NucleotideCompound> matrix = new SimpleSubstitutionMatrix<>(AmbiguityDNACompoundSet.getDNACompoundSet(), (short) 0, (short) -1);
+		return new Builder<>(matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(new SimpleGapPenalty(0, 1))
+				.setScoreEngine(ScoreEngine.BIT_PARALLEL);
+	}
+
 	public SequenceAligner(@Nonnull Builder<S, C> builder) {
 		m_gapPenalty = builder.m_gapPenalty;
 		m_matrix = builder.m_matrix;
+		m_table = new SubstitutionTable<>(m_matrix);
 		m_type = builder.m_type;
+		m_scoreEngine = builder.m_scoreEngine;
+		m_band = builder.m_band;
+		m_endGaps = builder.m_endGaps;
 		m_creator = builder.m_creator;
+		m_executor = builder.m_executor;
+		m_seed = builder.m_seed;
+		m_nullCache = builder.m_nullCache;
+		m_nullCacheParameters = m_nullCache == null ? null : nullCacheParameters();
+		m_maxPackedTracebackBytes = builder.m_maxPackedTracebackBytes;
+		m_tiledKernel = m_executor instanceof ForkJoinPool && m_scoreEngine == ScoreEngine.SCALAR && m_band == null && m_endGaps.isNone()
+				? new TiledKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), isGlobal())
+				: null;
+		m_parallelTraceback = m_executor instanceof ForkJoinPool && m_band == null
+				? new ParallelTraceback(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), isGlobal(), m_endGaps, m_aligners::get)
+				: null;
 	}
 
 	public SequenceAlignmentWithPvalue<S, C> alignAndCalcPvalue(@Nonnegative int nSimulations, @Nonnull S a, @Nonnull S b) {
@@ -104,179 +167,482 @@ public class SequenceAligner<S extends AbstractSequence<C>, C extends Compound>
 	 * "TTTTTTT" will always receive a p-value of 0.
 	 * To mitigate this issue, this method uses a slightly incorrect definition of p-value: the probability of
 	 * getting an alignment score <em>more</em> extreme under the null. This isn't a problem for real applications.
+	 * The simulations run on the {@link Builder#setExecutor(Executor) executor}, if one was set.
+	 * Given a {@link Builder#setSeed(long) seed}, the p-value is the same with or without an executor.
 	 */
 	public SequenceAlignmentWithPvalue<S, C> calcPvalueByPermutation(@Nonnegative int nSimulations, @Nonnull SequenceAlignment<S, C> result) {
 		//noinspection ConstantConditions
 		Preconditions.checkNotNull(result.getSequencePair(), "SequenceAlignment result is null");
+		int[] scores = permutedScores(nSimulations, result, result.getScore());
 		int rank = 0;
-		for (int i = 0; i < nSimulations; i++) {
-			S permuted = m_creator.apply(
-					randomlyPermute(result.getSequencePair().getOriginalSequences().get(1).toString())
-			);
+		for (int score : scores) {
 			// this is NOT strictly the definition of p-value, but it avoids issues with repetitive sequences
-			if (result.getScore() > alignFast(result.getOriginalA(), permuted)) rank++;
+			if (result.getScore() > score) rank++;
 		}
-		return new SequenceAlignmentWithPvalue<>(result, 1d - 1d * rank / (nSimulations + 1d));
+		return new SequenceAlignmentWithPvalue<>(result, 1d - 1d * rank / (nSimulations + 1d), nSimulations);
 	}
 
+	/**
+	 * Calculates a p-value for {@code query} against each of {@code targets}, permuting {@code query} only once.
+	 * Each target is scored against all of the permutations in turn, so that kernels with a per-sequence profile,
+	 * like {@link ScoreEngine#STRIPED}, build it once per target. The targets are spread across the
+	 * {@link Builder#setExecutor(Executor) executor}, if one was set.
+	 * The p-values are the same as from {@link #calcPvalueByPermutation(int, SequenceAlignment)} on the alignment of each target
+	 * with {@code query}, which permutes {@code query} in the same way.
+	 * @return The p-values, in the order of {@code targets}
+	 * @throws IllegalStateException If the substitution matrix isn't symmetric
+	 */
 	@Nonnull
-	public SequenceAlignment<S, C> align(@Nonnull S a, @Nonnull S b) {
-		PairwiseSequenceAligner<S, C> aligner = Alignments.getPairwiseAligner(a, b, m_type, m_gapPenalty, m_matrix);
+	public double[] calcPvaluesByPermutation(@Nonnegative int nSimulations, @Nonnull S query, @Nonnull List<S> targets) {
+		Preconditions.checkState(m_table.isSymmetric(), "Can't swap query and target with an asymmetric substitution matrix");
+		Preconditions.checkState(m_endGaps.isSymmetric(), "Can't swap query and target with asymmetric end gaps " + m_endGaps);
+		byte[] encoded = m_table.encode(query);
+		byte[][] permutations = PermutationTest.permutations(encoded, nSimulations, m_seed != null ? m_seed : ThreadLocalRandom.current().nextLong());
+		double[] pvalues = new double[targets.size()];
+		Parallel.forEach(m_executor, pvalues.length, i -> pvalues[i] = pvalue(m_table.encode(targets.get(i)), encoded, permutations));
+		return pvalues;
+	}
+
+	/**
+	 * @param permutations Permutations of {@code query}
+	 */
+	private double pvalue(@Nonnull byte[] target, @Nonnull byte[] query, @Nonnull byte[][] permutations) {
+		FastScorer kernel = m_workspaces.get().m_kernel;
+		int observed = kernel.score(target, query);
+		int[] scores = new int[permutations.length];
+		kernel.scoreAll(target, permutations, permutations.length, observed, scores, 0);
+		int rank = 0;
+		for (int score : scores) {
+			if (observed > score) rank++;
+		}
+		return 1d - 1d * rank / (permutations.length + 1d);
+	}
+
+	/**
+	 * Screens {@code targets} by score against {@code query}, and aligns only those scoring at least {@code minScore}.
+	 * Each target is encoded once for both stages, and screening stops early for targets that can't reach {@code minScore}
+	 * (with {@link ScoreEngine#SCALAR}). The targets are handed out to the {@link Builder#setExecutor(Executor) executor}, if one was set.
+	 * @return The alignments of the targets that passed, by their indices in {@code targets}, in order
+	 */
+	@Nonnull
+	public SortedMap<Integer, SequenceAlignment<S, C>> alignAboveScore(@Nonnull S query, @Nonnull List<S> targets, int minScore) {
+		byte[] encoded = m_table.encode(query);
+		List<SequenceAlignment<S, C>> alignments = new ArrayList<>(Collections.nCopies(targets.size(), null));
+		Parallel.forEach(m_executor, targets.size(), i -> {
+			S target = targets.get(i);
+			byte[] encodedTarget = m_table.encode(target);
+			if (m_workspaces.get().m_kernel.scoreAtLeast(encoded, encodedTarget, minScore) >= minScore) {
+				alignments.set(i, align(query, target, encoded, encodedTarget));
+			}
+		});
+		return survivors(alignments);
+	}
+
+	/**
+	 * Calculates p-values like {@link #calcPvaluesByPermutation(int, AbstractSequence, List)}, and aligns only the targets
+	 * with p-values of at most {@code maxPvalue}, encoding each target once for both stages.
+	 * @return The alignments of the targets that passed, by their indices in {@code targets}, in order
+	 * @throws IllegalStateException If the substitution matrix isn't symmetric
+	 */
+	@Nonnull
+	public SortedMap<Integer, SequenceAlignmentWithPvalue<S, C>> alignBelowPvalue(@Nonnull S query, @Nonnull List<S> targets,
+			@Nonnegative int nSimulations, double maxPvalue) {
+		Preconditions.checkState(m_table.isSymmetric(), "Can't swap query and target with an asymmetric substitution matrix");
+		Preconditions.checkState(m_endGaps.isSymmetric(), "Can't swap query and target with asymmetric end gaps " + m_endGaps);
+		byte[] encoded = m_table.encode(query);
+		byte[][] permutations = PermutationTest.permutations(encoded, nSimulations, m_seed != null ? m_seed : ThreadLocalRandom.current().nextLong());
+		List<SequenceAlignmentWithPvalue<S, C>> alignments = new ArrayList<>(Collections.nCopies(targets.size(), null));
+		Parallel.forEach(m_executor, targets.size(), i -> {
+			S target = targets.get(i);
+			byte[] encodedTarget = m_table.encode(target);
+			double pvalue = pvalue(encodedTarget, encoded, permutations);
+			if (pvalue <= maxPvalue) {
+				alignments.set(i, new SequenceAlignmentWithPvalue<>(align(query, target, encoded, encodedTarget), pvalue, nSimulations));
+			}
+		});
+		return survivors(alignments);
+	}
+
+	@Nonnull
+	private static <A> SortedMap<Integer, A> survivors(@Nonnull List<A> alignments) {
+		SortedMap<Integer, A> survivors = new TreeMap<>();
+		for (int i = 0; i < alignments.size(); i++) {
+			if (alignments.get(i) != null) survivors.put(i, alignments.get(i));
+		}
+		return survivors;
+	}
+
+	public SequenceAlignmentWithPvalue<S, C> alignAndCalcPvalue(@Nonnegative int maxSimulations, @Nonnull StoppingRule rule, @Nonnull S a, @Nonnull S b) {
+		SequenceAlignment<S, C> alignment = align(a, b);
+		return calcPvalueByPermutation(maxSimulations, rule, alignment);
+	}
+
+	/**
+	 * Same as {@link #calcPvalueByPermutation(int, SequenceAlignment)}, but stops early once {@code rule} is satisfied,
+	 * which for most non-significant pairs happens after a small fraction of {@code maxSimulations}.
+	 * {@link SequenceAlignmentWithPvalue#getNSimulations()} is the number of simulations actually run.
+	 * Given a {@link Builder#setSeed(long) seed}, the p-value is still the same with or without an executor.
+	 */
+	public SequenceAlignmentWithPvalue<S, C> calcPvalueByPermutation(@Nonnegative int maxSimulations, @Nonnull StoppingRule rule, @Nonnull SequenceAlignment<S, C> result) {
 		//noinspection ConstantConditions
-		if (aligner == null) {
-			throw new RuntimeException("Couldn't create aligner; something is wrong in Biojava");
+		Preconditions.checkNotNull(result.getSequencePair(), "SequenceAlignment result is null");
+		int[] scores = new PermutationTest(m_permutationWorkers::get, m_executor).runUntil(
+				m_table.encode(result.getOriginalA()),
+				m_table.encode(result.getOriginalB()),
+				result.getScore(),
+				maxSimulations,
+				m_seed != null ? m_seed : ThreadLocalRandom.current().nextLong(),
+				rule
+		);
+		int nExceeding = 0;
+		for (int score : scores) {
+			if (score >= result.getScore()) nExceeding++;
 		}
-		// this actually performs the alignment; do it first
-		SequencePair<S, C> pair = aligner.getPair();
-		return new SequenceAlignment<>(toIntExact(aligner.getScore()), aligner.getSimilarity(), pair);
+		return new SequenceAlignmentWithPvalue<>(result, rule.pvalue(scores.length, nExceeding), scores.length);
 	}
 
-	public int alignFast(@Nonnull S a, @Nonnull S b) {
+	public SequenceAlignmentWithGumbelFit<S, C> alignAndFitGumbel(@Nonnegative int nSimulations, @Nonnull S a, @Nonnull S b) {
+		SequenceAlignment<S, C> alignment = align(a, b);
+		return calcPvalueByGumbelFit(nSimulations, alignment);
+	}
 
-		if (m_type == Alignments.PairwiseSequenceAlignerType.GLOBAL || m_type == Alignments.PairwiseSequenceAlignerType.GLOBAL_LINEAR_SPACE) {
-			return calcAlignScoreFast(a, b, true);
-		} else if (m_type == Alignments.PairwiseSequenceAlignerType.LOCAL || m_type == Alignments.PairwiseSequenceAlignerType.LOCAL_LINEAR_SPACE) {
-			return calcAlignScoreFast(a, b, false);
+	/**
+	 * Fits a {@link GumbelFit Gumbel distribution} to the scores of {@code nSimulations} permutations, like those of
+	 * {@link #calcPvalueByPermutation(int, SequenceAlignment)}, and extrapolates the p-value from it.
+	 * A few hundred simulations resolve p-values that would need millions with permutation alone.
+	 * This is well-founded for local alignment; for global alignment, the p-value is only an approximation.
+	 * @throws IllegalArgumentException If every permutation gets the same score, so there is nothing to fit
+	 */
+	public SequenceAlignmentWithGumbelFit<S, C> calcPvalueByGumbelFit(@Nonnegative int nSimulations, @Nonnull SequenceAlignment<S, C> result) {
+		//noinspection ConstantConditions
+		Preconditions.checkNotNull(result.getSequencePair(), "SequenceAlignment result is null");
+		int[] scores = permutedScores(nSimulations, result, Integer.MIN_VALUE);
+		return new SequenceAlignmentWithGumbelFit<>(result, GumbelFit.fit(scores));
+	}
+
+	/**
+	 * Runs a permutation test, or takes its scores from the {@link Builder#setNullCache(NullDistributionCache) cache}.
+	 * @param threshold Scores below this needn't be exact; ignored with a cache, which needs exact scores
+	 */
+	@Nonnull
+	private int[] permutedScores(@Nonnegative int nSimulations, @Nonnull SequenceAlignment<S, C> result, int threshold) {
+		byte[] a = m_table.encode(result.getOriginalA()), b = m_table.encode(result.getOriginalB());
+		long seed = m_seed != null ? m_seed : ThreadLocalRandom.current().nextLong();
+		PermutationTest test = new PermutationTest(m_permutationWorkers::get, m_executor);
+		if (m_nullCache == null) return test.run(a, b, nSimulations, seed, threshold);
+		Supplier<int[]> simulate = () -> test.run(a, b, nSimulations, seed);
+		int[] composition = new int[m_table.size()];
+		for (byte code : b) {
+			composition[code]++;
 		}
-		throw new UnsupportedOperationException("Can't alignFast using type " + m_type);
+		return m_nullCache.get(new NullDistributionCache.Key(m_nullCacheParameters, a, composition, nSimulations), simulate);
 	}
 
-	private int calcAlignScoreFast(@Nonnull S a, @Nonnull S b, boolean global) {
+	/**
+	 * @return Everything that determines the scores, for {@link NullDistributionCache.Key}
+	 */
+	@Nonnull
+	private int[] nullCacheParameters() {
+		int[] scores = m_table.getScores();
+		int[] parameters = Arrays.copyOf(new int[] {
+				m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), isGlobal() ? 1 : 0,
+				m_band == null ? -1 : m_band.getWidth(), m_band != null && m_band.isAuto() ? 1 : 0,
+				(m_endGaps.isAStartFree() ? 1 : 0) | (m_endGaps.isAEndFree() ? 2 : 0) | (m_endGaps.isBStartFree() ? 4 : 0) | (m_endGaps.isBEndFree() ? 8 : 0),
+				m_table.size()
+		}, 7 + scores.length);
+		System.arraycopy(scores, 0, parameters, 7, scores.length);
+		return parameters;
+	}
 
-		int bLength = b.getLength();
-		int gop = m_gapPenalty.getOpenPenalty();
-		int gep = m_gapPenalty.getExtensionPenalty();
-		assert gop < 1 && gep < 1;
+	/**
+	 * Finds an optimal alignment in {@code O(n + m)} memory, using the same recurrence as {@link #alignFast}.
+	 * With a {@link Builder#setBand(Band) band}, only the cells inside the band are filled.
+	 * With {@link ScoreEngine#WAVEFRONT}, near-identical sequences are aligned in memory that grows with the score instead.
+	 * Otherwise, if the {@link Builder#setExecutor(Executor) executor} is a {@link ForkJoinPool}, a very large pair is
+	 * split across its threads, with the same result.
+	 * With {@link Builder#setPackedTraceback(long) a packed traceback}, pairs that fit are aligned with one pass over
+	 * a full matrix of traceback choices outside the heap instead.
+	 */
+	@Nonnull
+	public SequenceAlignment<S, C> align(@Nonnull S a, @Nonnull S b) {
+		return align(a, b, m_table.encode(a), m_table.encode(b));
+	}
 
-		int localBest = Integer.MIN_VALUE; // the best best (the best anywhere)
-		int best = 0; // the best at the current cell; will be overwritten
-		int[] currentM = new int[bLength + 1], currentX = new int[bLength + 1], currentY = new int[bLength + 1]; // will be overwritten
-		int[] aboveM = new int[bLength + 1], aboveX = new int[bLength + 1], aboveY = new int[bLength + 1];
-		aboveM[0] = m_matrix.getValue(a.getCompoundAt(1), b.getCompoundAt(1));
-		aboveX[0] = Math.decrementExact(aboveM[0]);  // meaningless; just make sure it's not used and doesn't underflow
-		for (int col = 1; col <= bLength; col++) {
-			aboveX[col] = Math.addExact(m_gapPenalty.getOpenPenalty(), mulAndCheck(col, m_gapPenalty.getExtensionPenalty()));
-			aboveM[col] = aboveY[col] = Math.decrementExact(min(aboveX[col], aboveX[col - 1])); // meaningless; just make sure they're not used and don't underflow
+	@Nonnull
+	private SequenceAlignment<S, C> align(@Nonnull S a, @Nonnull S b, @Nonnull byte[] encodedA, @Nonnull byte[] encodedB) {
+		AlignmentPath path;
+		if (m_band != null) {
+			path = newBandedKernel(isGlobal()).align(encodedA, encodedB);
+		} else if (m_scoreEngine == ScoreEngine.WAVEFRONT && isGlobal()) {
+			path = m_wavefrontAligners.get().align(encodedA, encodedB);
+		} else if (PackedTracebackAligner.bytes(encodedA.length, encodedB.length) <= m_maxPackedTracebackBytes) {
+			path = m_packedAligners.get().align(encodedA, encodedB);
+		} else if (m_parallelTraceback != null && m_parallelTraceback.applies(encodedA.length, encodedB.length)) {
+			path = m_parallelTraceback.align(encodedA, encodedB, (ForkJoinPool) m_executor);
+		} else {
+			path = m_aligners.get().align(encodedA, encodedB);
 		}
+		return toAlignment(a, b, encodedA, encodedB, path);
+	}
 
-		int leftY = gop + gep; // left of 1,1 (where we start) is 1,0, which must have been via Y
-		int leftM = Math.decrementExact(leftY), leftX = Math.decrementExact(leftY);  // meaningless; just make sure it's not used and doesn't underflow
+	/**
+	 * Finds where an optimal alignment of {@code a} and {@code b} lies, and its score, in {@code O(n + m)} memory.
+	 * A forward pass finds the end, and a backward pass over only the part of the matrix before it finds the start.
+	 * For a local alignment of long sequences, the window is often far smaller than the sequences.
+	 * @throws IllegalStateException If a {@link Builder#setBand(Band) band} is set
+	 */
+	@Nonnull
+	public AlignmentHit locate(@Nonnull S a, @Nonnull S b) {
+		Preconditions.checkState(m_band == null, "Can't locate with a band");
+		return m_aligners.get().locate(m_table.encode(a), m_table.encode(b));
+	}
 
-		for (int row = 1; row < a.getLength(); row++) {
-			for (int col = 1; col < bLength; col++) {
+	/**
+	 * Aligns only the window of {@code hit}, from {@link #locate} on the same sequences, in memory proportional to its width.
+	 * @throws IllegalStateException If a {@link Builder#setBand(Band) band} is set
+	 */
+	@Nonnull
+	public SequenceAlignment<S, C> align(@Nonnull S a, @Nonnull S b, @Nonnull AlignmentHit hit) {
+		Preconditions.checkState(m_band == null, "Can't align a window with a band");
+		byte[] encodedA = m_table.encode(a), encodedB = m_table.encode(b);
+		Preconditions.checkPositionIndexes(hit.getAStart(), hit.getAEnd(), encodedA.length);
+		Preconditions.checkPositionIndexes(hit.getBStart(), hit.getBEnd(), encodedB.length);
+		return toAlignment(a, b, encodedA, encodedB, m_aligners.get().align(encodedA, encodedB, hit));
+	}
 
-				int match = m_matrix.getValue(a.getCompoundAt(row + 1), b.getCompoundAt(col + 1));
+	/**
+	 * Calculates only the score of the alignment of {@code a} and {@code b}.
+	 * Buffers are kept per thread and reused across calls.
+	 * If the {@link Builder#setExecutor(Executor) executor} is a {@link ForkJoinPool}, a very large pair is split into tiles
+	 * that are filled on all of its threads, with the same score; this needs {@link ScoreEngine#SCALAR}, no band, and no free end gaps.
+	 */
+	public int alignFast(@Nonnull S a, @Nonnull S b) {
+		if (m_tiledKernel != null && m_tiledKernel.applies(a.getLength(), b.getLength())) {
+			return m_tiledKernel.score(m_table.encode(a), m_table.encode(b), (ForkJoinPool) m_executor);
+		}
+		return alignFast(a, b, m_workspaces.get());
+	}
 
-				currentY[col] = Math.addExact(
-						gep,
-						max(Math.addExact(gop, aboveM[col]), Math.addExact(gop, aboveX[col]), aboveY[col])
-				);
-				currentX[col] = Math.addExact(
-						gep,
-						max(Math.addExact(gop, leftM), Math.addExact(gop, leftY), leftX)
-				);
+	/**
+	 * Same as {@link #alignFast(AbstractSequence, AbstractSequence)}, using buffers that the caller manages.
+	 * @param workspace From {@link #newWorkspace()} on this SequenceAligner; must not be used by two threads at once
+	 */
+	public int alignFast(@Nonnull S a, @Nonnull S b, @Nonnull Workspace workspace) {
+		Preconditions.checkArgument(workspace.m_owner == m_workspaceOwner, "The workspace belongs to a different SequenceAligner");
+		workspace.m_a = m_table.encode(a, workspace.m_a);
+		return alignFast(workspace.m_a, b, workspace);
+	}
 
-				currentM[col] = Math.addExact(
-						match,
-						max(aboveM[col - 1], aboveX[col - 1], aboveY[col - 1])
-				);
+	/**
+	 * Scores {@code query} against each of {@code targets}, encoding {@code query} once.
+	 * The targets are split across the {@link Builder#setExecutor(Executor) executor}, if one was set.
+	 * @return The scores, in the order of {@code targets}
+	 */
+	@Nonnull
+	public int[] alignFastAll(@Nonnull S query, @Nonnull Iterable<S> targets) {
+		List<S> list = targets instanceof List && targets instanceof RandomAccess ? (List<S>) targets : Lists.newArrayList(targets);
+		byte[] encoded = m_table.encode(query);
+		int[] scores = new int[list.size()];
+		Parallel.forRanges(m_executor, scores.length, (from, to) -> {
+			Workspace workspace = m_workspaces.get();
+			for (int i = from; i < to; i++) {
+				scores[i] = alignFast(encoded, list.get(i), workspace);
+			}
+		});
+		return scores;
+	}
 
-				if (!global && currentM[col] < 0) currentM[col] = 0;
+	/**
+	 * Same as {@link #alignFastAll(AbstractSequence, Iterable)}, but lazy.
+	 * Runs in parallel if {@code targets} is a parallel stream, and ignores the executor.
+	 */
+	@Nonnull
+	public IntStream alignFastAll(@Nonnull S query, @Nonnull Stream<S> targets) {
+		byte[] encoded = m_table.encode(query);
+		return targets.mapToInt(target -> alignFast(encoded, target, m_workspaces.get()));
+	}
 
-				best = max(currentY[col], currentX[col], currentM[col]);
-				if (best > localBest) localBest = best;
+	/**
+	 * Scores every pair of {@code sequences}, each pair only once.
+	 * Blocks of the upper triangle are handed out to the {@link Builder#setExecutor(Executor) executor}, if one was set;
+	 * a {@link java.util.concurrent.ForkJoinPool} balances them by work-stealing.
+	 * @throws IllegalStateException If the substitution matrix isn't symmetric
+	 */
+	@Nonnull
+	public ScoreMatrix alignFastAllPairs(@Nonnull List<S> sequences) {
+		return alignFastAllPairs(sequences, ScoreMatrix.onHeap(sequences.size()));
+	}
+
+	/**
+	 * Same as {@link #alignFastAllPairs(List)}, but writes the matrix to {@code file}, mapped into memory.
+	 */
+	@Nonnull
+	public ScoreMatrix alignFastAllPairs(@Nonnull List<S> sequences, @Nonnull Path file) throws IOException {
+		ScoreMatrix matrix = alignFastAllPairs(sequences, ScoreMatrix.mapped(sequences.size(), file));
+		matrix.force();
+		return matrix;
+	}
 
-				leftM = currentM[col];
-				leftX = currentX[col];
-				leftY = currentY[col];
+	@Nonnull
+	private ScoreMatrix alignFastAllPairs(@Nonnull List<S> sequences, @Nonnull ScoreMatrix matrix) {
+		Preconditions.checkState(m_table.isSymmetric(), "Can't use symmetry with an asymmetric substitution matrix");
+		Preconditions.checkState(m_endGaps.isSymmetric(), "Can't use symmetry with asymmetric end gaps " + m_endGaps);
+		int n = sequences.size();
+		byte[][] encoded = new byte[n][];
+		Parallel.forEach(m_executor, n, i -> encoded[i] = m_table.encode(sequences.get(i)));
+		// tiles of the upper triangle, so that each task reuses a few sequences many times
+		int nBlocks = (n + sf_tileSize - 1) / sf_tileSize;
+		int[] tileRows = new int[nBlocks * (nBlocks + 1) / 2], tileCols = new int[tileRows.length];
+		for (int row = 0, tile = 0; row < nBlocks; row++) {
+			for (int col = row; col < nBlocks; col++, tile++) {
+				tileRows[tile] = row;
+				tileCols[tile] = col;
 			}
-			System.arraycopy(currentM, 0, aboveM, 0, aboveM.length);
-			System.arraycopy(currentX, 0, aboveX, 0, aboveX.length);
-			System.arraycopy(currentY, 0, aboveY, 0, aboveY.length);
 		}
+		Parallel.forEach(m_executor, tileRows.length, tile -> {
+			FastScorer kernel = m_workspaces.get().m_kernel;
+			int rowStart = tileRows[tile] * sf_tileSize, rowEnd = Math.min(n, rowStart + sf_tileSize);
+			int colStart = tileCols[tile] * sf_tileSize, colEnd = Math.min(n, colStart + sf_tileSize);
+			for (int i = rowStart; i < rowEnd; i++) {
+				for (int j = Math.max(i, colStart); j < colEnd; j++) {
+					matrix.set(i, j, kernel.score(encoded[i], encoded[j]));
+				}
+			}
+		});
+		return matrix;
+	}
 
-		if (global) return best;
-		return localBest;
+	private int alignFast(@Nonnull byte[] query, @Nonnull S target, @Nonnull Workspace workspace) {
+		workspace.m_b = m_table.encode(target, workspace.m_b);
+		return workspace.m_kernel.score(query, workspace.m_b);
 	}
 
 	/**
-	 * This only works if SequenceAligner is made abstract
+	 * Same as {@link #alignFast(AbstractSequence, AbstractSequence)}, for sequences already encoded by {@link #m_table}.
 	 */
-	@SuppressWarnings("unchecked")
-	private S create(String string) {
-		try {
-			return (S) ((Class<?>)((ParameterizedType)getClass().getGenericSuperclass())
-					.getActualTypeArguments()[0])
-					.getDeclaredConstructor(String.class)
-					.newInstance(string);
-		} catch (InstantiationException | IllegalAccessException | ClassCastException | NoSuchMethodException | InvocationTargetException e) {
-			throw new RuntimeException("Couldn't create new instance", e);
-		}
+	int alignFast(@Nonnull byte[] a, @Nonnull byte[] b) {
+		return m_workspaces.get().m_kernel.score(a, b);
 	}
 
 	/**
-	 * Converts {@code d} to an integer, and throws a {@link java.lang.ArithmeticException} if {@code d} is not an integer.
+	 * @return Buffers for {@link #alignFast(AbstractSequence, AbstractSequence, Workspace)}
 	 */
-	private static int toIntExact(double d) {
-		int x = (int)d;
-		//noinspection FloatingPointEquality
-		if (x != d) {
-			throw new ArithmeticException("Cannot convert " + d + " to int");
+	@Nonnull
+	public Workspace newWorkspace() {
+		return new Workspace(m_workspaceOwner, newKernel());
+	}
+
+	@Nonnull
+	private FastScorer newKernel() {
+		boolean global = isGlobal();
+		if (m_band != null) return newBandedKernel(global);
+		switch (m_scoreEngine) {
+			case SCALAR:
+				return new ScoreKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), global, m_endGaps);
+			case STRIPED:
+				return new StripedKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), global);
+			case INTER_SEQUENCE:
+				return new InterSequenceKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), global);
+			case BIT_PARALLEL:
+				return new BitParallelKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), global, m_endGaps);
+			case WAVEFRONT:
+				if (global) return newWavefrontAligner();
+				return new ScoreKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), false);
+			default:
+				throw new UnsupportedOperationException("Can't alignFast using engine " + m_scoreEngine);
 		}
-		return x;
 	}
 
 	@Nonnull
-	private static String randomlyPermute(@Nonnull String string) {
-		List<Character> list = new ArrayList<>();
-		for (char c : string.toCharArray()) {
-			list.add(c);
+	private LinearSpaceAligner newLinearSpaceAligner() {
+		return new LinearSpaceAligner(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), isGlobal(), m_endGaps);
+	}
+
+	@Nonnull
+	private PackedTracebackAligner newPackedTracebackAligner() {
+		return new PackedTracebackAligner(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), isGlobal(), m_endGaps);
+	}
+
+	@Nonnull
+	private WavefrontAligner newWavefrontAligner() {
+		return new WavefrontAligner(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty());
+	}
+
+	@Nonnull
+	private BandedKernel newBandedKernel(boolean global) {
+		return new BandedKernel(m_table, m_gapPenalty.getOpenPenalty(), m_gapPenalty.getExtensionPenalty(), global, m_band);
+	}
+
+	private boolean isGlobal() {
+		if (m_type == Alignments.PairwiseSequenceAlignerType.GLOBAL || m_type == Alignments.PairwiseSequenceAlignerType.GLOBAL_LINEAR_SPACE) {
+			return true;
+		} else if (m_type == Alignments.PairwiseSequenceAlignerType.LOCAL || m_type == Alignments.PairwiseSequenceAlignerType.LOCAL_LINEAR_SPACE) {
+			return false;
 		}
-		Collections.shuffle(list);
-		StringBuilder sb = new StringBuilder();
-		list.forEach(sb::append);
-		return sb.toString();
+		throw new UnsupportedOperationException("Unsupported alignment type " + m_type);
 	}
 
 	/**
-	 * @return The largest element in {@code array}
+	 * Converts a traceback to the same form that Biojava returns.
+	 * The similarity is calculated the way Biojava does: the score, scaled between the worst and best possible scores.
 	 */
-	private static int max(@Nonnull @Size(min = 1) int... array) {
-		int max = Integer.MIN_VALUE;
-		for (int x : array) {
-			if (x > max) max = x;
+	@Nonnull
+	private SequenceAlignment<S, C> toAlignment(@Nonnull S a, @Nonnull S b, @Nonnull byte[] encodedA, @Nonnull byte[] encodedB, @Nonnull AlignmentPath path) {
+		List<AlignedSequence.Step> stepsA = new ArrayList<>(path.length()), stepsB = new ArrayList<>(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			byte operation = path.getOperation(i);
+			stepsA.add(operation == AlignmentPath.GAP_IN_A ? AlignedSequence.Step.GAP : AlignedSequence.Step.COMPOUND);
+			stepsB.add(operation == AlignmentPath.GAP_IN_B ? AlignedSequence.Step.GAP : AlignedSequence.Step.COMPOUND);
+		}
+		SequencePair<S, C> pair = new SimpleSequencePair<>(
+				a, b,
+				stepsA, path.getAStart(), encodedA.length - path.getAEnd(),
+				stepsB, path.getBStart(), encodedB.length - path.getBEnd()
+		);
+		long max = Math.max(selfScore(encodedA), selfScore(encodedB));
+		long min = isGlobal() ? 2L * m_gapPenalty.getOpenPenalty() + (long) (encodedA.length + encodedB.length) * m_gapPenalty.getExtensionPenalty() : 0;
+		double similarity = max == min ? 1 : (double) (path.getScore() - min) / (max - min);
+		return new SequenceAlignment<>(path.getScore(), similarity, pair);
+	}
+
+	private long selfScore(@Nonnull byte[] encoded) {
+		long score = 0;
+		for (byte residue : encoded) {
+			score += m_table.getScore(residue, residue);
 		}
-		return max;
+		return score;
 	}
 
 	/**
-	 * @return The smallest element in {@code array}
+	 * This only works if SequenceAligner is made abstract
 	 */
-	private static int min(@Nonnull @Size(min = 1) int... array) {
-		int min = Integer.MAX_VALUE;
-		for (int x : array) {
-			if (x < min) min = x;
+	@SuppressWarnings("unchecked")
+	private S create(String string) {
+		try {
+			return (S) ((Class<?>)((ParameterizedType)getClass().getGenericSuperclass())
+					.getActualTypeArguments()[0])
+					.getDeclaredConstructor(String.class)
+					.newInstance(string);
+		} catch (InstantiationException | IllegalAccessException | ClassCastException | NoSuchMethodException | InvocationTargetException e) {
+			throw new RuntimeException("Couldn't create new instance", e);
 		}
-		return min;
 	}
 
 	/**
-	 * Multiply two integers, checking for overflow.
-	 *
-	 * Adapted from Apache Commons Math 3.6, {@code ArithmeticUtils.mulAndACheck(int, int)}.
-	 *
-	 * @param x Factor.
-	 * @param y Factor.
-	 * @return the product {@code x * y}.
-	 * @throws ArithmeticException if the result can not be
-	 * represented as an {@code int}.
+	 * Dynamic programming and encoding buffers for one {@link SequenceAligner}, reused across calls to alignFast.
+	 * Repeated calls with sequences of the same lengths allocate nothing.
 	 */
-	private static int mulAndCheck(int x, int y) throws ArithmeticException {
-		long m = (long) x * (long) y;
-		if (m >= -2147483648L && m <= 2147483647L) {
-			return (int) m;
-		} else {
-			throw new ArithmeticException("Multiplying " + x + " with " + y + " would overflow");
+	@NotThreadSafe
+	public static final class Workspace {
+
+		private final Object m_owner;
+		private final FastScorer m_kernel;
+		private byte[] m_a;
+		private byte[] m_b;
+
+		private Workspace(@Nonnull Object owner, @Nonnull FastScorer kernel) {
+			m_owner = owner;
+			m_kernel = kernel;
 		}
 	}
 
@@ -294,6 +660,14 @@ public class SequenceAligner<S extends AbstractSequence<C>, C extends Compound>
 
         private SubstitutionMatrix<C> m_matrix;
         private Alignments.PairwiseSequenceAlignerType m_type;
+		private ScoreEngine m_scoreEngine = ScoreEngine.SCALAR;
+		private Band m_band;
+		private EndGaps m_endGaps = EndGaps.none();
+
+		private Executor m_executor;
+		private Long m_seed;
+		private NullDistributionCache m_nullCache;
+		private long m_maxPackedTracebackBytes;
 
 		public Builder(@Nonnull SubstitutionMatrix<C> matrix, @Nonnull Alignments.PairwiseSequenceAlignerType type, @Nonnull SequenceCreator<S> creator) {
 			m_matrix = matrix;
@@ -321,7 +695,87 @@ public class SequenceAligner<S extends AbstractSequence<C>, C extends Compound>
 			return this;
 		}
 
+		/**
+		 * Chooses how {@link SequenceAligner#alignFast} and permutation tests calculate scores; {@link ScoreEngine#SCALAR} by default.
+		 */
+		public Builder<S, C> setScoreEngine(@Nonnull ScoreEngine scoreEngine) {
+			m_scoreEngine = scoreEngine;
+			return this;
+		}
+
+		/**
+		 * Restricts {@link SequenceAligner#align}, {@link SequenceAligner#alignFast}, and permutation tests to a band
+		 * around the main diagonal, for sequences that differ by only a few insertions and deletions.
+		 * Only works with {@link ScoreEngine#SCALAR}. A {@link Band#auto(int) automatic} band always finds the best global
+		 * score, but for local alignment it's a heuristic that can return a lower score.
+		 * @param band Or null to fill the whole matrix, the default
+		 */
+		public Builder<S, C> setBand(@Nullable Band band) {
+			m_band = band;
+			return this;
+		}
+
+		/**
+		 * Lets a global alignment leave residues at the chosen ends of either sequence unaligned at no cost,
+		 * for semi-global and overlap alignment; applies to {@link SequenceAligner#align}, {@link SequenceAligner#alignFast},
+		 * and permutation tests. Only works with a global type and {@link ScoreEngine#SCALAR} or {@link ScoreEngine#BIT_PARALLEL},
+		 * without a band.
+		 */
+		public Builder<S, C> setEndGaps(@Nonnull EndGaps endGaps) {
+			m_endGaps = endGaps;
+			return this;
+		}
+
+		/**
+		 * Runs permutation tests on {@code executor}, such as a {@link java.util.concurrent.ForkJoinPool}.
+		 * By default, they run on the calling thread.
+		 */
+		public Builder<S, C> setExecutor(@Nonnull Executor executor) {
+			m_executor = executor;
+			return this;
+		}
+
+		/**
+		 * Seeds the random permutations, making p-values reproducible.
+		 */
+		public Builder<S, C> setSeed(long seed) {
+			m_seed = seed;
+			return this;
+		}
+
+		/**
+		 * Reuses permuted scores across calls to {@link SequenceAligner#calcPvalueByPermutation(int, SequenceAlignment)}
+		 * and {@link SequenceAligner#calcPvalueByGumbelFit(int, SequenceAlignment)} for pairs with the same null distribution.
+		 * Tests with a {@link StoppingRule} depend on the observed score, so they always run.
+		 * @param nullCache Or null to run every permutation test, the default
+		 */
+		public Builder<S, C> setNullCache(@Nullable NullDistributionCache nullCache) {
+			m_nullCache = nullCache;
+			return this;
+		}
+
+		/**
+		 * Lets {@link SequenceAligner#align} fill the matrix once, keeping the traceback choices of every cell in one byte,
+		 * in direct memory outside the heap, for pairs that need at most {@code maxBytes}; the memory is freed as soon as each
+		 * traceback finishes. A 10 kb pair needs 100 MB, and a 50 kb pair 2.5 GB, which {@code -XX:MaxDirectMemorySize} must allow.
+		 * Larger pairs still use {@code O(n + m)} memory. Doesn't apply with a band, or where {@link ScoreEngine#WAVEFRONT} aligns instead.
+		 * @param maxBytes Or 0 to always use {@code O(n + m)} memory, the default
+		 */
+		public Builder<S, C> setPackedTraceback(@Nonnegative long maxBytes) {
+			Preconditions.checkArgument(maxBytes >= 0, "Maximum bytes " + maxBytes + " is negative");
+			m_maxPackedTracebackBytes = maxBytes;
+			return this;
+		}
+
 		public SequenceAligner<S, C> build() {
+			Preconditions.checkState(m_band == null || m_scoreEngine == ScoreEngine.SCALAR, "Can't use a band with score engine " + m_scoreEngine);
+			if (!m_endGaps.isNone()) {
+				Preconditions.checkState(m_type == Alignments.PairwiseSequenceAlignerType.GLOBAL || m_type == Alignments.PairwiseSequenceAlignerType.GLOBAL_LINEAR_SPACE,
+						"Can't use free end gaps with alignment type " + m_type);
+				Preconditions.checkState(m_scoreEngine == ScoreEngine.SCALAR || m_scoreEngine == ScoreEngine.BIT_PARALLEL,
+						"Can't use free end gaps with score engine " + m_scoreEngine);
+				Preconditions.checkState(m_band == null, "Can't use free end gaps with a band");
+			}
 			return new SequenceAligner<>(this);
 		}
 
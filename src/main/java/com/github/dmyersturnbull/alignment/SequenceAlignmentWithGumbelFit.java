@@ -0,0 +1,70 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Objects;
+import org.biojava.nbio.core.sequence.template.AbstractSequence;
+import org.biojava.nbio.core.sequence.template.Compound;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A sequence alignment result with a p-value extrapolated from a {@link GumbelFit} to permuted scores.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+public class SequenceAlignmentWithGumbelFit<S extends AbstractSequence<C>, C extends Compound> extends SequenceAlignmentWithPvalue<S, C> {
+
+	private final GumbelFit m_fit;
+
+	@Nonnull
+	public GumbelFit getFit() {
+		return m_fit;
+	}
+
+	public SequenceAlignmentWithGumbelFit(@Nonnull SequenceAlignment<S, C> alignment, @Nonnull GumbelFit fit) {
+		super(alignment, fit.pvalue(alignment.getScore()), fit.getNSamples());
+		m_fit = fit;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + System.lineSeparator() + m_fit;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		//noinspection EqualsBetweenInconvertibleTypes
+		if (!super.equals(o)) {
+			return false;
+		}
+		SequenceAlignmentWithGumbelFit<?, ?> that = (SequenceAlignmentWithGumbelFit<?, ?>) o;
+		return Objects.equal(m_fit, that.m_fit);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(super.hashCode(), m_fit);
+	}
+}
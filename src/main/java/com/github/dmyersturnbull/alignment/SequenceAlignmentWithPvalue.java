@@ -33,23 +33,41 @@ import javax.annotation.concurrent.Immutable;
 public class SequenceAlignmentWithPvalue<S extends AbstractSequence<C>, C extends Compound> extends SequenceAlignment<S, C> {
 
 	private final double m_pvalue;
+	private final int m_nSimulations;
 
 	public double getPvalue() {
 		return m_pvalue;
 	}
 
-	public SequenceAlignmentWithPvalue(int score, @Nonnegative double similarity, @Nonnegative double pvalue, @Nonnull SequencePair<S, C> sequencePair) {
+	/**
+	 * @return The number of permutations the p-value was calculated from, or 0 if unknown
+	 */
+	@Nonnegative
+	public int getNSimulations() {
+		return m_nSimulations;
+	}
+
+	public SequenceAlignmentWithPvalue(int score, @Nonnegative double similarity, @Nonnegative double pvalue, @Nonnegative int nSimulations, @Nonnull SequencePair<S, C> sequencePair) {
 		super(score, similarity, sequencePair);
 		m_pvalue = pvalue;
+		m_nSimulations = nSimulations;
+	}
+
+	public SequenceAlignmentWithPvalue(int score, @Nonnegative double similarity, @Nonnegative double pvalue, @Nonnull SequencePair<S, C> sequencePair) {
+		this(score, similarity, pvalue, 0, sequencePair);
+	}
+
+	public SequenceAlignmentWithPvalue(@Nonnull SequenceAlignment<S, C> alignment, double pvalue, @Nonnegative int nSimulations) {
+		this(alignment.getScore(), alignment.getSimilarity(), pvalue, nSimulations, alignment.getSequencePair());
 	}
 
 	public SequenceAlignmentWithPvalue(@Nonnull SequenceAlignment<S, C> alignment, double pvalue) {
-		this(alignment.getScore(), alignment.getSimilarity(), pvalue, alignment.getSequencePair());
+		this(alignment, pvalue, 0);
 	}
 
 	@Override
 	public String toString() {
-		return super.toString() + System.lineSeparator() + "pvalue=" + m_pvalue;
+		return super.toString() + System.lineSeparator() + "pvalue=" + m_pvalue + " (" + m_nSimulations + " simulations)";
 	}
 
 	@Override
@@ -65,11 +83,11 @@ public class SequenceAlignmentWithPvalue<S extends AbstractSequence<C>, C extend
 			return false;
 		}
 		SequenceAlignmentWithPvalue<?, ?> that = (SequenceAlignmentWithPvalue<?, ?>) o;
-		return Objects.equal(m_pvalue, that.m_pvalue);
+		return Objects.equal(m_pvalue, that.m_pvalue) && m_nSimulations == that.m_nSimulations;
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hashCode(super.hashCode(), m_pvalue);
+		return Objects.hashCode(super.hashCode(), m_pvalue, m_nSimulations);
 	}
 }
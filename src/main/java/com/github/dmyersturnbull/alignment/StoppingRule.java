@@ -0,0 +1,136 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Objects;
+
+/**
+ * Decides when a permutation test can stop before running every simulation, for pairs that are clearly not significant.
+ * A simulation <em>exceeds</em> the observed score if it scores at least as high.
+ *
+ * With {@link #exceedances(int) exceedances}, the test stops as soon as {@code h} simulations exceed the observed score,
+ * after {@code l} simulations, and the p-value is {@code h / l}
+ * (Besag, J. and Clifford, P. Sequential Monte Carlo p-values. Biometrika, 1991).
+ * With a {@link #precision(double) precision}, it stops once the 95% Wilson score interval around the p-value is narrower than
+ * {@code 2 * halfWidth}. Otherwise, the p-value is calculated as usual from the simulations run.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+public final class StoppingRule {
+
+	private static final double sf_z = 1.959964; // 95% confidence
+
+	private final int m_exceedances;
+	private final double m_halfWidth;
+
+	private StoppingRule(int exceedances, double halfWidth) {
+		Preconditions.checkArgument(exceedances >= 0, "Number of exceedances " + exceedances + " is negative");
+		Preconditions.checkArgument(halfWidth >= 0 && halfWidth <= 1, "Half-width " + halfWidth + " is not between 0 and 1");
+		m_exceedances = exceedances;
+		m_halfWidth = halfWidth;
+	}
+
+	/**
+	 * Stops after {@code h} simulations exceed the observed score. Besag and Clifford suggest {@code h} between 10 and 20.
+	 */
+	@Nonnull
+	public static StoppingRule exceedances(int h) {
+		Preconditions.checkArgument(h > 0, "Number of exceedances " + h + " is not positive");
+		return new StoppingRule(h, 0);
+	}
+
+	/**
+	 * Stops once the 95% confidence interval of the p-value is within {@code halfWidth} of it on either side.
+	 */
+	@Nonnull
+	public static StoppingRule precision(double halfWidth) {
+		Preconditions.checkArgument(halfWidth > 0, "Half-width " + halfWidth + " is not positive");
+		return new StoppingRule(0, halfWidth);
+	}
+
+	/**
+	 * Stops on whichever of {@link #exceedances(int)} and {@link #precision(double)} comes first.
+	 */
+	@Nonnull
+	public static StoppingRule of(int h, double halfWidth) {
+		Preconditions.checkArgument(h > 0, "Number of exceedances " + h + " is not positive");
+		Preconditions.checkArgument(halfWidth > 0, "Half-width " + halfWidth + " is not positive");
+		return new StoppingRule(h, halfWidth);
+	}
+
+	/**
+	 * @return The number of exceedances to stop at, or 0 if there is none
+	 */
+	@Nonnegative
+	public int getExceedances() {
+		return m_exceedances;
+	}
+
+	/**
+	 * @return The half-width of the confidence interval to stop at, or 0 if there is none
+	 */
+	@Nonnegative
+	public double getHalfWidth() {
+		return m_halfWidth;
+	}
+
+	boolean isDone(@Nonnegative int nRun, @Nonnegative int nExceeding) {
+		if (m_exceedances > 0 && nExceeding >= m_exceedances) return true;
+		return m_halfWidth > 0 && halfWidth(nRun, nExceeding) < m_halfWidth;
+	}
+
+	/**
+	 * @return The Besag-Clifford estimate if the test stopped on exceedances, and otherwise the usual {@code (e + 1) / (l + 1)}
+	 */
+	double pvalue(@Nonnegative int nRun, @Nonnegative int nExceeding) {
+		if (m_exceedances > 0 && nExceeding >= m_exceedances) return (double) nExceeding / nRun;
+		return (nExceeding + 1d) / (nRun + 1d);
+	}
+
+	private static double halfWidth(int nRun, int nExceeding) {
+		double p = (double) nExceeding / nRun, zz = sf_z * sf_z / nRun;
+		return sf_z * Math.sqrt(p * (1 - p) / nRun + zz / (4 * nRun)) / (1 + zz);
+	}
+
+	@Override
+	public String toString() {
+		return "StoppingRule{exceedances=" + m_exceedances + ", halfWidth=" + m_halfWidth + "}";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		StoppingRule that = (StoppingRule) o;
+		return m_exceedances == that.m_exceedances && m_halfWidth == that.m_halfWidth;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(m_exceedances, m_halfWidth);
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Calculates the same scores as {@link ScoreKernel} using Farrar's striped query profile
+ * (Farrar, M. Striped Smith-Waterman speeds database searches six times over other SIMD implementations. Bioinformatics, 2007).
+ *
+ * Sequence A is split into {@link #LANES} interleaved stripes of {@code segmentLength} residues, so that residue
+ * {@code lane * segmentLength + k} sits at index {@code k * LANES + lane}. Each column of the matrices (one residue of B)
+ * is then computed {@link #LANES} cells at a time in loops over contiguous arrays, which the JIT can turn into SIMD instructions.
+ * Gaps in B are propagated across lanes afterward by Farrar's lazy-F loop.
+ * The profile for A is kept until a different A is passed.
+ *
+ * Columns are computed in 16-bit lanes when they can be. Local scores start at 0 and only saturate at the top, so a local
+ * alignment that saturates is simply rerun in 32-bit lanes; global scores also fall, so they use 16-bit lanes only if
+ * {@link SubstitutionTable#isBounded} proves they fit. Sequences whose scores could come anywhere near overflowing 32 bits
+ * are handed to a {@link ScoreKernel}, which switches to 64 bits.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class StripedKernel implements FastScorer {
+
+	static final int LANES = 8;
+
+	private final SubstitutionTable<?> m_table;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final ScoreKernel m_fallback;
+	private final boolean m_localShortsFit;
+
+	private byte[] m_query = new byte[0];
+	private int m_segmentLength;
+	private int[] m_profile = new int[0];
+	private int[] m_hLoad = new int[0], m_hStore = new int[0], m_e = new int[0];
+	private short[] m_shortProfile = new short[0];
+	private short[] m_shortHLoad = new short[0], m_shortHStore = new short[0], m_shortE = new short[0];
+	private final int[] m_f = new int[LANES], m_h = new int[LANES];
+
+	StripedKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global) {
+		assert gop < 1 && gep < 1;
+		m_table = table;
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_fallback = new ScoreKernel(table, gop, gep, global);
+		// a local score can't saturate before the 16-bit check catches it as long as single steps are small
+		m_localShortsFit = !global && table.isBounded(0, 0, gop, gep, Short.MAX_VALUE / 4);
+	}
+
+	@Override
+	public int score(@Nonnull byte[] a, @Nonnull byte[] b) {
+
+		if (a.length == 0 || b.length == 0 || !m_table.isBounded(a.length, b.length, m_gop, m_gep, SubstitutionTable.INT_LIMIT)) {
+			return m_fallback.score(a, b);
+		}
+		if (!Arrays.equals(a, m_query)) buildProfile(a);
+
+		// local scores only grow from 0, so only the top can saturate; global scores fall as well, so bound them in advance
+		if (m_global ? m_table.isBounded(a.length, b.length, m_gop, m_gep, Short.MAX_VALUE) : m_localShortsFit) {
+			int score = scoreShorts(a, b);
+			if (score <= Short.MAX_VALUE) return score;
+		}
+		return scoreInts(a, b);
+	}
+
+	private int scoreInts(@Nonnull byte[] a, @Nonnull byte[] b) {
+
+		int segmentLength = m_segmentLength, width = segmentLength * LANES;
+		int gop = m_gop, gep = m_gep, open = gop + gep;
+		boolean global = m_global;
+		int[] profile = m_profile, hLoad = m_hLoad, hStore = m_hStore, e = m_e, f = m_f, h = m_h;
+
+		// column 0
+		for (int k = 0; k < segmentLength; k++) {
+			for (int lane = 0; lane < LANES; lane++) {
+				int row = lane * segmentLength + k + 1;
+				int boundary = global ? gop + row * gep : 0;
+				hLoad[k * LANES + lane] = boundary;
+				e[k * LANES + lane] = boundary + open;
+			}
+		}
+
+		int best = 0;
+		for (int col = 1; col <= b.length; col++) {
+			int offset = b[col - 1] * width;
+
+			// the diagonal for the first segment is the last segment of the previous column, shifted over one lane
+			h[0] = global ? (col == 1 ? 0 : gop + (col - 1) * gep) : 0;
+			for (int lane = 1; lane < LANES; lane++) {
+				h[lane] = hLoad[(segmentLength - 1) * LANES + lane - 1];
+			}
+			f[0] = global ? gop + col * gep + open : open;
+			for (int lane = 1; lane < LANES; lane++) {
+				f[lane] = NEGATIVE_INFINITY;
+			}
+
+			for (int k = 0; k < segmentLength; k++) {
+				int base = k * LANES;
+				for (int lane = 0; lane < LANES; lane++) {
+					int i = base + lane;
+					int m = h[lane] + profile[offset + i];
+					if (!global && m < 0) m = 0;
+					if (m > best) best = m;
+					int cell = Math.max(m, Math.max(e[i], f[lane]));
+					hStore[i] = cell;
+					int opened = cell + open;
+					e[i] = Math.max(e[i] + gep, opened);
+					f[lane] = Math.max(f[lane] + gep, opened);
+					h[lane] = hLoad[i];
+				}
+			}
+
+			// lazy F: carry gaps in B from the end of each stripe into the next one
+			shiftLanes(f, NEGATIVE_INFINITY);
+			for (int k = 0; anyExceeds(f, hStore, k * LANES, open); ) {
+				int base = k * LANES;
+				for (int lane = 0; lane < LANES; lane++) {
+					int i = base + lane;
+					int cell = Math.max(hStore[i], f[lane]);
+					hStore[i] = cell;
+					e[i] = Math.max(e[i], cell + open);
+					f[lane] += gep;
+				}
+				if (++k == segmentLength) {
+					k = 0;
+					shiftLanes(f, NEGATIVE_INFINITY);
+				}
+			}
+
+			int[] swap = hLoad;
+			hLoad = hStore;
+			hStore = swap;
+		}
+		m_hLoad = hLoad;
+		m_hStore = hStore;
+
+		if (global) {
+			int last = a.length - 1;
+			return hLoad[last % segmentLength * LANES + last / segmentLength];
+		}
+		return best;
+	}
+
+	/**
+	 * Same as {@link #scoreInts}, in 16-bit lanes, so that twice as many cells fit in a vector.
+	 * @return The score, or a score above {@link Short#MAX_VALUE} if a local score saturated
+	 */
+	private int scoreShorts(@Nonnull byte[] a, @Nonnull byte[] b) {
+
+		int segmentLength = m_segmentLength, width = segmentLength * LANES;
+		int gop = m_gop, gep = m_gep, open = gop + gep;
+		boolean global = m_global;
+		short[] profile = m_shortProfile, hLoad = m_shortHLoad, hStore = m_shortHStore, e = m_shortE;
+		int[] f = m_f, h = m_h;
+
+		// column 0
+		for (int k = 0; k < segmentLength; k++) {
+			for (int lane = 0; lane < LANES; lane++) {
+				int row = lane * segmentLength + k + 1;
+				int boundary = global ? gop + row * gep : 0;
+				hLoad[k * LANES + lane] = (short) boundary;
+				e[k * LANES + lane] = (short) (boundary + open);
+			}
+		}
+
+		int best = 0;
+		for (int col = 1; col <= b.length; col++) {
+			int offset = b[col - 1] * width;
+
+			// the diagonal for the first segment is the last segment of the previous column, shifted over one lane
+			h[0] = global ? (col == 1 ? 0 : gop + (col - 1) * gep) : 0;
+			for (int lane = 1; lane < LANES; lane++) {
+				h[lane] = hLoad[(segmentLength - 1) * LANES + lane - 1];
+			}
+			f[0] = global ? gop + col * gep + open : open;
+			for (int lane = 1; lane < LANES; lane++) {
+				f[lane] = NEGATIVE_INFINITY;
+			}
+
+			for (int k = 0; k < segmentLength; k++) {
+				int base = k * LANES;
+				for (int lane = 0; lane < LANES; lane++) {
+					int i = base + lane;
+					int m = h[lane] + profile[offset + i];
+					if (!global && m < 0) m = 0;
+					if (m > best) best = m;
+					int cell = Math.max(m, Math.max(e[i], f[lane]));
+					hStore[i] = (short) cell;
+					int opened = cell + open;
+					e[i] = (short) Math.max(e[i] + gep, opened);
+					f[lane] = Math.max(f[lane] + gep, opened);
+					h[lane] = hLoad[i];
+				}
+			}
+
+			if (best > Short.MAX_VALUE) return best; // saturated, so some cells wrapped around
+
+			// lazy F: carry gaps in B from the end of each stripe into the next one
+			shiftLanes(f, NEGATIVE_INFINITY);
+			for (int k = 0; anyExceeds(f, hStore, k * LANES, open); ) {
+				int base = k * LANES;
+				for (int lane = 0; lane < LANES; lane++) {
+					int i = base + lane;
+					int cell = Math.max(hStore[i], f[lane]);
+					hStore[i] = (short) cell;
+					e[i] = (short) Math.max(e[i], cell + open);
+					f[lane] += gep;
+				}
+				if (++k == segmentLength) {
+					k = 0;
+					shiftLanes(f, NEGATIVE_INFINITY);
+				}
+			}
+
+			short[] swap = hLoad;
+			hLoad = hStore;
+			hStore = swap;
+		}
+		m_shortHLoad = hLoad;
+		m_shortHStore = hStore;
+
+		if (global) {
+			int last = a.length - 1;
+			return hLoad[last % segmentLength * LANES + last / segmentLength];
+		}
+		return best;
+	}
+
+	private void buildProfile(@Nonnull byte[] a) {
+		int segmentLength = (a.length + LANES - 1) / LANES, width = segmentLength * LANES;
+		int size = m_table.size();
+		int[] scores = m_table.getScores();
+		if (m_profile.length < size * width) {
+			m_profile = new int[size * width];
+			m_shortProfile = new short[size * width];
+		}
+		if (m_hLoad.length < width) {
+			m_hLoad = new int[width];
+			m_hStore = new int[width];
+			m_e = new int[width];
+			m_shortHLoad = new short[width];
+			m_shortHStore = new short[width];
+			m_shortE = new short[width];
+		}
+		for (int residue = 0; residue < size; residue++) {
+			for (int k = 0; k < segmentLength; k++) {
+				for (int lane = 0; lane < LANES; lane++) {
+					int position = lane * segmentLength + k;
+					// padding past the end of A can only feed other padding, so any score that can't overflow works
+					int score = position < a.length ? scores[a[position] * size + residue] : 0;
+					m_profile[residue * width + k * LANES + lane] = score;
+					m_shortProfile[residue * width + k * LANES + lane] = (short) score;
+				}
+			}
+		}
+		m_query = a.clone(); // callers may reuse their buffers
+		m_segmentLength = segmentLength;
+	}
+
+	private static void shiftLanes(@Nonnull int[] lanes, int first) {
+		System.arraycopy(lanes, 0, lanes, 1, LANES - 1);
+		lanes[0] = first;
+	}
+
+	/**
+	 * @return Whether a gap in B could still raise any cell in segment {@code base / LANES}
+	 */
+	private static boolean anyExceeds(@Nonnull int[] f, @Nonnull int[] h, int base, int open) {
+		for (int lane = 0; lane < LANES; lane++) {
+			if (f[lane] > h[base + lane] + open) return true;
+		}
+		return false;
+	}
+
+	private static boolean anyExceeds(@Nonnull int[] f, @Nonnull short[] h, int base, int open) {
+		for (int lane = 0; lane < LANES; lane++) {
+			if (f[lane] > h[base + lane] + open) return true;
+		}
+		return false;
+	}
+
+}
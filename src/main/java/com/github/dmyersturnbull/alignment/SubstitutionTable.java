@@ -0,0 +1,161 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+import org.biojava.nbio.alignment.template.SubstitutionMatrix;
+import org.biojava.nbio.core.sequence.template.Compound;
+import org.biojava.nbio.core.sequence.template.Sequence;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link SubstitutionMatrix} flattened into an {@code int[]} indexed by alphabet codes.
+ * Sequences are encoded once into {@code byte[]} codes so that score kernels only touch primitive arrays.
+ * Compounds that the matrix doesn't know are encoded as a single unknown code, which scores like
+ * {@link SubstitutionMatrix#getValue(Compound, Compound)} does for them: the minimum value of the matrix.
+ * @author Douglas Myers-Turnbull
+ */
+@Immutable
+final class SubstitutionTable<C extends Compound> {
+
+	/**
+	 * The {@code limit} for {@link #isBounded} below which every engine uses {@code int} arithmetic:
+	 * below this magnitude, no value (and no value plus a penalty or score) can leave the range of an {@code int}.
+	 */
+	static final long INT_LIMIT = 1 << 29;
+
+	private final List<C> m_compounds;
+	private final Map<C, Byte> m_codes;
+	private final byte m_unknown;
+	private final int m_size;
+	private final int[] m_scores;
+	private final int m_maxValue;
+	private final int m_minValue;
+
+	SubstitutionTable(@Nonnull SubstitutionMatrix<C> matrix) {
+		m_compounds = matrix.getCompoundSet().getAllCompounds();
+		Preconditions.checkArgument(m_compounds.size() < Byte.MAX_VALUE, "Alphabet of " + m_compounds.size() + " compounds is too large");
+		m_codes = new HashMap<>();
+		for (int i = 0; i < m_compounds.size(); i++) {
+			m_codes.putIfAbsent(m_compounds.get(i), (byte) i);
+		}
+		m_unknown = (byte) m_compounds.size();
+		m_size = m_compounds.size() + 1;
+		m_scores = new int[m_size * m_size];
+		for (int i = 0; i < m_size; i++) {
+			for (int j = 0; j < m_size; j++) {
+				m_scores[i * m_size + j] = i == m_unknown || j == m_unknown
+						? matrix.getMinValue()
+						: matrix.getValue(m_compounds.get(i), m_compounds.get(j));
+			}
+		}
+		int max = Integer.MIN_VALUE, min = Integer.MAX_VALUE;
+		for (int score : m_scores) {
+			if (score > max) max = score;
+			if (score < min) min = score;
+		}
+		m_maxValue = max;
+		m_minValue = min;
+	}
+
+	@Nonnull
+	byte[] encode(@Nonnull Sequence<C> sequence) {
+		return encode(sequence, null);
+	}
+
+	/**
+	 * @param buffer Filled and returned instead of a new array if it has exactly the length of {@code sequence}
+	 */
+	@Nonnull
+	byte[] encode(@Nonnull Sequence<C> sequence, @Nullable byte[] buffer) {
+		byte[] encoded = buffer != null && buffer.length == sequence.getLength() ? buffer : new byte[sequence.getLength()];
+		int i = 0;
+		for (C compound : sequence) {
+			encoded[i++] = encode(compound);
+		}
+		return encoded;
+	}
+
+	/**
+	 * Mirrors the lookup in {@link org.biojava.nbio.alignment.SimpleSubstitutionMatrix}: an exact match first, then a case-insensitive one.
+	 */
+	byte encode(@Nonnull C compound) {
+		Byte code = m_codes.get(compound);
+		if (code != null) return code;
+		for (int i = 0; i < m_compounds.size(); i++) {
+			if (compound.equalsIgnoreCase(m_compounds.get(i))) return (byte) i;
+		}
+		return m_unknown;
+	}
+
+	/**
+	 * @return The number of codes, including the unknown code; rows of {@link #getScores()} have this length
+	 */
+	@Nonnegative
+	int size() {
+		return m_size;
+	}
+
+	/**
+	 * @return The score for codes {@code i} and {@code j} at {@code i * size() + j}; never modify this array
+	 */
+	@Nonnull
+	int[] getScores() {
+		return m_scores;
+	}
+
+	int getScore(byte a, byte b) {
+		return m_scores[a * m_size + b];
+	}
+
+	int getMaxValue() {
+		return m_maxValue;
+	}
+
+	int getMinValue() {
+		return m_minValue;
+	}
+
+	/**
+	 * @return Whether swapping the two codes never changes the score, so that scores of A against B and of B against A agree
+	 */
+	boolean isSymmetric() {
+		for (int i = 0; i < m_size; i++) {
+			for (int j = i + 1; j < m_size; j++) {
+				if (m_scores[i * m_size + j] != m_scores[j * m_size + i]) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Whether the magnitude of every alignment score of sequences of lengths {@code aLength} and {@code bLength}, and of
+	 * every intermediate value in a kernel, is less than {@code limit}
+	 */
+	boolean isBounded(int aLength, int bLength, int gop, int gep, long limit) {
+		long perStep = Math.max(Math.max(Math.abs((long) m_maxValue), Math.abs((long) m_minValue)), Math.abs((long) gop) + Math.abs((long) gep));
+		return ((long) aLength + bLength + 2) * perStep < limit;
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Calculates the same scores as {@link ScoreKernel}, for one large pair, on all of the threads of a {@link ForkJoinPool},
+ * by filling the matrices in tiles with a {@link TiledSweep}.
+ * Each cell is calculated exactly as in {@link ScoreKernel}, so the scores are identical.
+ * @author Douglas Myers-Turnbull
+ */
+@ThreadSafe
+final class TiledKernel {
+
+	/**
+	 * Below this many cells, the overhead of the tiles isn't worth it.
+	 */
+	static final long MIN_CELLS = 1 << 22;
+
+	private final SubstitutionTable<?> m_table;
+	private final int m_gop;
+	private final int m_gep;
+	private final boolean m_global;
+	private final TiledSweep m_sweep;
+
+	/**
+	 * @param global Needleman-Wunsch without free end gaps if true; otherwise Smith-Waterman
+	 */
+	TiledKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global) {
+		this(table, gop, gep, global, 512, 2048);
+	}
+
+	TiledKernel(@Nonnull SubstitutionTable<?> table, int gop, int gep, boolean global, @Nonnegative int tileRows, @Nonnegative int tileCols) {
+		m_table = table;
+		m_gop = gop;
+		m_gep = gep;
+		m_global = global;
+		m_sweep = new TiledSweep(table, gop, gep, tileRows, tileCols);
+	}
+
+	/**
+	 * @return Whether {@link #score} handles sequences of these lengths: large enough to be worth splitting,
+	 * and small enough for {@code int} arithmetic
+	 */
+	boolean applies(@Nonnegative int aLength, @Nonnegative int bLength) {
+		return (long) aLength * bLength >= MIN_CELLS && aLength > m_sweep.getTileRows() && bLength > m_sweep.getTileCols()
+				&& m_table.isBounded(aLength, bLength, m_gop, m_gep, SubstitutionTable.INT_LIMIT);
+	}
+
+	/**
+	 * Requires {@link #applies} for the lengths of {@code a} and {@code b}, except that tests can use smaller sequences.
+	 */
+	int score(@Nonnull byte[] a, @Nonnull byte[] b, @Nonnull ForkJoinPool pool) {
+		Preconditions.checkArgument(m_table.isBounded(a.length, b.length, m_gop, m_gep, SubstitutionTable.INT_LIMIT),
+				"Sequences of lengths " + a.length + " and " + b.length + " are too long for int arithmetic");
+		boolean global = m_global;
+		// the first row and column of ScoreKernel
+		int[][] top = new int[3][b.length + 1], left = new int[3][a.length + 1];
+		top[1][0] = top[2][0] = left[1][0] = left[2][0] = NEGATIVE_INFINITY;
+		for (int col = 1; col <= b.length; col++) {
+			top[0][col] = global ? NEGATIVE_INFINITY : 0;
+			top[1][col] = global ? m_gop + col * m_gep : NEGATIVE_INFINITY;
+			top[2][col] = NEGATIVE_INFINITY;
+		}
+		for (int row = 1; row <= a.length; row++) {
+			left[0][row] = global ? NEGATIVE_INFINITY : 0;
+			left[1][row] = NEGATIVE_INFINITY;
+			left[2][row] = global ? m_gop + row * m_gep : NEGATIVE_INFINITY;
+		}
+		int best = m_sweep.sweep(a, b, 0, a.length, 0, b.length, global ? TiledSweep.Pass.FORWARD : TiledSweep.Pass.FORWARD_LOCAL,
+				top, left, pool);
+		if (!global) return best;
+		return Math.max(top[0][b.length], Math.max(top[1][b.length], top[2][b.length]));
+	}
+
+}
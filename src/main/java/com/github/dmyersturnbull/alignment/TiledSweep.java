@@ -0,0 +1,207 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Fills the M, X, and Y matrices of one range of a pair on all of the threads of a {@link ForkJoinPool}, keeping only their
+ * last row and last column. Used by {@link TiledKernel} and {@link ParallelTraceback}.
+ *
+ * The matrices are split into tiles small enough for their rows to stay in cache. A tile depends only on the tiles
+ * above it and to its left, so the tiles on each anti-diagonal of tiles are filled in parallel, one anti-diagonal at a time.
+ * Between tiles, only frontiers are kept: the last row filled in each column of tiles, the last column filled in each row
+ * of tiles, and the top-left corner of the next tile in each row of tiles. Tiles on one anti-diagonal touch disjoint parts
+ * of them, so they need no locking.
+ * @author Douglas Myers-Turnbull
+ */
+@ThreadSafe
+final class TiledSweep {
+
+	/**
+	 * The recurrence each cell is filled with.
+	 */
+	enum Pass {
+		/**
+		 * The recurrence of {@link ScoreKernel} for global alignment, and of {@link LinearSpaceAligner}'s forward pass.
+		 */
+		FORWARD,
+		/**
+		 * The recurrence of {@link ScoreKernel} for local alignment: M is never below 0.
+		 */
+		FORWARD_LOCAL,
+		/**
+		 * The recurrence of {@link LinearSpaceAligner}'s backward pass, with rows and columns counted from the ends of the ranges.
+		 */
+		BACKWARD
+	}
+
+	private final int[] m_scores;
+	private final int m_size;
+	private final int m_gop;
+	private final int m_gep;
+	private final int m_tileRows;
+	private final int m_tileCols;
+
+	// one row of each tile at a time; each is several KB, so they're kept per thread
+	private final ThreadLocal<int[][]> m_rows;
+
+	TiledSweep(@Nonnull SubstitutionTable<?> table, int gop, int gep, @Nonnegative int tileRows, @Nonnegative int tileCols) {
+		assert gop < 1 && gep < 1;
+		Preconditions.checkArgument(tileRows > 0 && tileCols > 0, "Tiles of " + tileRows + " by " + tileCols + " are empty");
+		m_scores = table.getScores();
+		m_size = table.size();
+		m_gop = gop;
+		m_gep = gep;
+		m_tileRows = tileRows;
+		m_tileCols = tileCols;
+		m_rows = ThreadLocal.withInitial(() -> new int[6][tileCols + 1]);
+	}
+
+	int getTileRows() {
+		return m_tileRows;
+	}
+
+	int getTileCols() {
+		return m_tileCols;
+	}
+
+	/**
+	 * Fills the rows of {@code a[aStart, aEnd)} against {@code b[bStart, bEnd)} in tiles, one anti-diagonal of tiles at a time.
+	 * The caller must check that the scores fit in {@code int}.
+	 * @param top The first row, for M, X, and Y, including the corner; replaced by the last row
+	 * @param left The first column, for M, X, and Y, including the corner; overwritten
+	 * @return For {@link Pass#FORWARD_LOCAL}, the highest M anywhere; otherwise meaningless
+	 */
+	int sweep(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, @Nonnull Pass pass,
+			@Nonnull int[][] top, @Nonnull int[][] left, @Nonnull ForkJoinPool pool) {
+		int nRows = aEnd - aStart, nCols = bEnd - bStart;
+		int nTileRows = (nRows + m_tileRows - 1) / m_tileRows, nTileCols = (nCols + m_tileCols - 1) / m_tileCols;
+		int[][] corners = new int[3][nTileRows];
+		int[] first = {left[0][nRows], left[1][nRows], left[2][nRows]};
+		for (int tileRow = 0; tileRow < nTileRows; tileRow++) {
+			for (int state = 0; state < 3; state++) {
+				corners[state][tileRow] = left[state][tileRow * m_tileRows];
+			}
+		}
+		// tiles in one row of tiles are never filled at once, so each row of tiles keeps its own best
+		int[] localBest = new int[nTileRows];
+		for (int diagonal = 0; diagonal < nTileRows + nTileCols - 1; diagonal++) {
+			int firstRow = Math.max(0, diagonal - nTileCols + 1), lastRow = Math.min(diagonal, nTileRows - 1);
+			int d = diagonal;
+			Parallel.forEach(pool, lastRow - firstRow + 1, k -> {
+				int tileRow = firstRow + k, tileCol = d - tileRow;
+				int r0 = tileRow * m_tileRows, r1 = Math.min(nRows, r0 + m_tileRows);
+				int c0 = tileCol * m_tileCols, c1 = Math.min(nCols, c0 + m_tileCols);
+				fillTile(a, b, aStart, aEnd, bStart, bEnd, pass, r0, r1, c0, c1, top, left, corners, localBest, tileRow);
+			});
+		}
+		// the tiles only replace the columns after the first, and overwrite the first column
+		for (int state = 0; state < 3; state++) {
+			top[state][0] = first[state];
+		}
+		int best = 0;
+		for (int rowBest : localBest) {
+			best = Math.max(best, rowBest);
+		}
+		return best;
+	}
+
+	/**
+	 * Fills rows {@code (r0, r1]} and columns {@code (c0, c1]}, counted as in {@link #sweep}, replacing the part of the row
+	 * frontier {@code top} and column frontier {@code left} that it covers, and the corner for the next tile in its row.
+	 */
+	private void fillTile(@Nonnull byte[] a, @Nonnull byte[] b, int aStart, int aEnd, int bStart, int bEnd, @Nonnull Pass pass,
+			int r0, int r1, int c0, int c1, @Nonnull int[][] top, @Nonnull int[][] left, @Nonnull int[][] corners,
+			@Nonnull int[] localBest, int tileRow) {
+
+		int width = c1 - c0;
+		int[] scores = m_scores;
+		int size = m_size, gop = m_gop, gep = m_gep, open = gop + gep;
+		boolean local = pass == Pass.FORWARD_LOCAL;
+		int[][] rows = m_rows.get();
+		int[] currentM = rows[0], currentX = rows[1], currentY = rows[2];
+		int[] aboveM = rows[3], aboveX = rows[4], aboveY = rows[5];
+		int[] colM = left[0], colX = left[1], colY = left[2];
+
+		aboveM[0] = corners[0][tileRow];
+		aboveX[0] = corners[1][tileRow];
+		aboveY[0] = corners[2][tileRow];
+		System.arraycopy(top[0], c0 + 1, aboveM, 1, width);
+		System.arraycopy(top[1], c0 + 1, aboveX, 1, width);
+		System.arraycopy(top[2], c0 + 1, aboveY, 1, width);
+		// the next tile to the right starts at this tile's top-right corner
+		for (int state = 0; state < 3; state++) {
+			corners[state][tileRow] = top[state][c1];
+		}
+
+		int best = localBest[tileRow];
+		for (int row = r0 + 1; row <= r1; row++) {
+			currentM[0] = colM[row];
+			currentX[0] = colX[row];
+			currentY[0] = colY[row];
+			if (pass == Pass.BACKWARD) {
+				int offset = a[aEnd - row] * size;
+				for (int col = 1; col <= width; col++) {
+					// the best finish starting with each operation, not counting the opening penalty
+					int m = scores[offset + b[bEnd - c0 - col]] + aboveM[col - 1];
+					int x = gep + currentX[col - 1];
+					int y = gep + aboveY[col];
+					int xOpened = gop + x, yOpened = gop + y;
+					currentM[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(xOpened, yOpened)));
+					currentX[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(x, yOpened)));
+					currentY[col] = Math.max(NEGATIVE_INFINITY, Math.max(m, Math.max(xOpened, y)));
+				}
+			} else {
+				int offset = a[aStart + row - 1] * size;
+				for (int col = 1; col <= width; col++) {
+					int diagonal = Math.max(aboveM[col - 1], Math.max(aboveX[col - 1], aboveY[col - 1]));
+					int m = scores[offset + b[bStart + c0 + col - 1]] + diagonal;
+					if (local && m < 0) m = 0;
+					currentM[col] = m;
+					currentX[col] = Math.max(open + Math.max(currentM[col - 1], currentY[col - 1]), gep + currentX[col - 1]);
+					currentY[col] = Math.max(open + Math.max(aboveM[col], aboveX[col]), gep + aboveY[col]);
+					if (m > best) best = m;
+				}
+			}
+			colM[row] = currentM[width];
+			colX[row] = currentX[width];
+			colY[row] = currentY[width];
+			int[] swap = aboveM;
+			aboveM = currentM;
+			currentM = swap;
+			swap = aboveX;
+			aboveX = currentX;
+			currentX = swap;
+			swap = aboveY;
+			aboveY = currentY;
+			currentY = swap;
+		}
+		localBest[tileRow] = best;
+		System.arraycopy(aboveM, 1, top[0], c0 + 1, width);
+		System.arraycopy(aboveX, 1, top[1], c0 + 1, width);
+		System.arraycopy(aboveY, 1, top[2], c0 + 1, width);
+	}
+
+}
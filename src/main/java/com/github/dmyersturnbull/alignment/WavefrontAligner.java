@@ -0,0 +1,334 @@
+/*
+   Copyright 2015 Douglas Myers-Turnbull
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.github.dmyersturnbull.alignment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+
+import static com.github.dmyersturnbull.alignment.ScoreKernel.NEGATIVE_INFINITY;
+
+/**
+ * Calculates global alignment scores and tracebacks under the recurrence of {@link ScoreKernel} with the wavefront algorithm
+ * (Marco-Sola, S. et al. Fast gap-affine pairwise alignment using the wavefront algorithm. Bioinformatics, 2021),
+ * in time {@code O((n + m) * s)} for an alignment of cost {@code s}, instead of {@code O(n * m)}.
+ *
+ * The wavefront algorithm minimizes a cost in which matches are free. When every residue scores {@code match} against itself
+ * and {@code mismatch} against every other residue, a score maximizes exactly when the cost
+ * {@code match * (n + m) - 2 * score} minimizes, with mismatches costing {@code 2 * (match - mismatch)}, gap openings
+ * {@code -2 * gop}, and each gapped residue {@code match - 2 * gep} (Eizenga, J. M. and Paten, B. Improving the time and space
+ * complexity of the WFA algorithm and generalizing its scoring. bioRxiv, 2022).
+ * Wavefront {@code s} holds, for each diagonal {@code k = j - i}, the furthest column {@code j} reachable with cost {@code s}
+ * in each of the three states, which is then extended along matching residues for free.
+ *
+ * Pairs that the substitution table doesn't score that way, and pairs so different that the wavefronts would cost more
+ * than filling the matrix, are handed to a {@link ScoreKernel} or a {@link LinearSpaceAligner}.
+ * Buffers are kept between calls, so use one instance per thread.
+ * @author Douglas Myers-Turnbull
+ */
+@NotThreadSafe
+final class WavefrontAligner implements FastScorer {
+
+	/**
+	 * Tracebacks keep every wavefront, with three {@code int} offsets per diagonal; past this many diagonals (3 MB),
+	 * a {@link LinearSpaceAligner} is used instead, which needs only {@code O(n + m)} memory.
+	 */
+	private static final long sf_maxStoredDiagonals = 1 << 18;
+
+	private final int[] m_scores;
+	private final int m_size;
+	private final int m_gop;
+	private final int m_gep;
+	private final ScoreKernel m_fallback;
+	private final LinearSpaceAligner m_fallbackAligner;
+	private final boolean[] m_inA, m_inB;
+
+	// the costs for the current pair
+	private int m_match, m_mismatch, m_open, m_extend;
+
+	private Wavefront[] m_wavefronts = new Wavefront[0];
+
+	WavefrontAligner(@Nonnull SubstitutionTable<?> table, int gop, int gep) {
+		assert gop < 1 && gep < 1;
+		m_scores = table.getScores();
+		m_size = table.size();
+		m_gop = gop;
+		m_gep = gep;
+		m_fallback = new ScoreKernel(table, gop, gep, true);
+		m_fallbackAligner = new LinearSpaceAligner(table, gop, gep, true);
+		m_inA = new boolean[m_size];
+		m_inB = new boolean[m_size];
+	}
+
+	@Override
+	public int score(@Nonnull byte[] a, @Nonnull byte[] b) {
+		return scoreAtLeast(a, b, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Stops once the cost is too high for the score to reach {@code threshold}, which for dissimilar pairs is much sooner.
+	 */
+	@Override
+	public int scoreAtLeast(@Nonnull byte[] a, @Nonnull byte[] b, int threshold) {
+		if (!setCosts(a, b)) return m_fallback.scoreAtLeast(a, b, threshold);
+		long perfect = (long) m_match * (a.length + b.length);
+		long maxCost = threshold == Integer.MIN_VALUE ? Long.MAX_VALUE : perfect - 2L * threshold;
+		long cost = run(a, b, false, maxCost, (long) a.length * b.length / 4);
+		if (cost < 0) return m_fallback.scoreAtLeast(a, b, threshold);
+		// past maxCost, this is a bound below the threshold
+		return Math.toIntExact(Math.floorDiv(perfect - cost, 2));
+	}
+
+	@Nonnull
+	AlignmentPath align(@Nonnull byte[] a, @Nonnull byte[] b) {
+		if (!setCosts(a, b)) return m_fallbackAligner.align(a, b);
+		try {
+			long cost = run(a, b, true, Long.MAX_VALUE, Math.min(sf_maxStoredDiagonals, (long) a.length * b.length / 4));
+			if (cost < 0) return m_fallbackAligner.align(a, b);
+			return traceback(a.length, b.length, (int) cost);
+		} finally {
+			// the kept wavefronts can be large
+			Arrays.fill(m_wavefronts, null);
+		}
+	}
+
+	/**
+	 * Derives the costs from the scores of the residues in {@code a} and {@code b}.
+	 * @return Whether they're scored uniformly, and every mismatch and gapped residue costs something
+	 */
+	private boolean setCosts(@Nonnull byte[] a, @Nonnull byte[] b) {
+		boolean[] inA = m_inA, inB = m_inB;
+		Arrays.fill(inA, false);
+		Arrays.fill(inB, false);
+		for (byte x : a) {
+			inA[x] = true;
+		}
+		for (byte y : b) {
+			inB[y] = true;
+		}
+		int size = m_size;
+		Integer match = null, mismatch = null;
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; inA[x] && y < size; y++) {
+				if (!inB[y]) continue;
+				int score = m_scores[x * size + y];
+				if (x == y) {
+					if (match != null && match != score) return false;
+					match = score;
+				} else {
+					if (mismatch != null && mismatch != score) return false;
+					mismatch = score;
+				}
+			}
+		}
+		// with no residue in common, or no two that differ, the missing score never counts
+		if (match == null) return false;
+		if (mismatch == null) mismatch = match - 1;
+		m_match = match;
+		m_mismatch = 2 * (match - mismatch);
+		m_open = -2 * m_gop;
+		m_extend = match - 2 * m_gep;
+		return m_mismatch > 0 && m_extend > 0;
+	}
+
+	/**
+	 * Computes wavefronts until one reaches the end of both sequences.
+	 * @param keep Keep every wavefront for a traceback, instead of only the last few
+	 * @param maxCost Stop once the cost exceeds this
+	 * @param maxWork Give up after computing and extending this many offsets
+	 * @return The cost; the first cost above {@code maxCost}; or -1 if it gave up
+	 */
+	private long run(@Nonnull byte[] a, @Nonnull byte[] b, boolean keep, long maxCost, long maxWork) {
+
+		int aLength = a.length, bLength = b.length, end = bLength - aLength;
+		int mismatch = m_mismatch, openExtend = m_open + m_extend, extend = m_extend;
+		int window = Math.max(mismatch, openExtend) + 1;
+		if (!keep && m_wavefronts.length != window) m_wavefronts = new Wavefront[window];
+		long work = 0;
+
+		for (int s = 0; ; s++) {
+			if (s > maxCost) return s;
+			if (++work > maxWork) return -1;
+			Wavefront current = slot(s, keep, window);
+			if (s == 0) {
+				current.reset(0, 0);
+				current.m_m[0] = extend(a, b, 0, 0);
+				current.m_i[0] = current.m_d[0] = NEGATIVE_INFINITY;
+			} else {
+				Wavefront fromMismatch = get(s - mismatch, keep, window), fromOpen = get(s - openExtend, keep, window), fromExtend = get(s - extend, keep, window);
+				// mismatches stay on a diagonal, and gaps move one diagonal either way
+				int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+				if (fromMismatch != null) {
+					lo = fromMismatch.m_lo;
+					hi = fromMismatch.m_hi;
+				}
+				for (int g = 0; g < 2; g++) {
+					Wavefront source = g == 0 ? fromOpen : fromExtend;
+					if (source != null) {
+						lo = Math.min(lo, source.m_lo - 1);
+						hi = Math.max(hi, source.m_hi + 1);
+					}
+				}
+				lo = Math.max(lo, -aLength);
+				hi = Math.min(hi, bLength);
+				if (lo > hi) {
+					current.reset(1, 0);
+				} else {
+					current.reset(lo, hi);
+					work += hi - lo + 1;
+					for (int k = lo; k <= hi; k++) {
+						int index = k - lo;
+						int ins = Math.max(offset(fromOpen, AlignmentPath.MATCH, k - 1), offset(fromExtend, AlignmentPath.GAP_IN_A, k - 1));
+						ins = clip(k, ins + 1, aLength, bLength);
+						int del = Math.max(offset(fromOpen, AlignmentPath.MATCH, k + 1), offset(fromExtend, AlignmentPath.GAP_IN_B, k + 1));
+						del = clip(k, del, aLength, bLength);
+						int m = Math.max(clip(k, offset(fromMismatch, AlignmentPath.MATCH, k) + 1, aLength, bLength), Math.max(ins, del));
+						current.m_i[index] = ins;
+						current.m_d[index] = del;
+						if (m >= 0) {
+							int extended = extend(a, b, m - k, m);
+							work += extended - m;
+							m = extended;
+						}
+						current.m_m[index] = m;
+					}
+				}
+			}
+			if (end >= current.m_lo && end <= current.m_hi && current.m_m[end - current.m_lo] == bLength) return s;
+		}
+	}
+
+	@Nonnull
+	private Wavefront slot(int s, boolean keep, int window) {
+		if (!keep) {
+			if (m_wavefronts[s % window] == null) m_wavefronts[s % window] = new Wavefront();
+			return m_wavefronts[s % window];
+		}
+		if (s >= m_wavefronts.length) m_wavefronts = Arrays.copyOf(m_wavefronts, Math.max(16, 2 * s));
+		return m_wavefronts[s] = new Wavefront();
+	}
+
+	/**
+	 * @return Wavefront {@code s}, or null if it's empty or {@code s} is negative
+	 */
+	@Nullable
+	private Wavefront get(int s, boolean keep, int window) {
+		if (s < 0) return null;
+		Wavefront wavefront = m_wavefronts[keep ? s : s % window];
+		return wavefront == null || wavefront.m_lo > wavefront.m_hi ? null : wavefront;
+	}
+
+	/**
+	 * @param state One of the operations of {@link AlignmentPath}, for the M, X, or Y state
+	 * @return The furthest offset on diagonal {@code k} in {@code state}, or {@link ScoreKernel#NEGATIVE_INFINITY}
+	 */
+	private static int offset(@Nullable Wavefront wavefront, byte state, int k) {
+		if (wavefront == null || k < wavefront.m_lo || k > wavefront.m_hi) return NEGATIVE_INFINITY;
+		int[] offsets = state == AlignmentPath.MATCH ? wavefront.m_m : state == AlignmentPath.GAP_IN_A ? wavefront.m_i : wavefront.m_d;
+		return offsets[k - wavefront.m_lo];
+	}
+
+	/**
+	 * @return {@code j}, or {@link ScoreKernel#NEGATIVE_INFINITY} if it's outside the matrix
+	 */
+	private static int clip(int k, int j, int aLength, int bLength) {
+		return j >= 0 && j <= bLength && j - k >= 0 && j - k <= aLength ? j : NEGATIVE_INFINITY;
+	}
+
+	private static int extend(@Nonnull byte[] a, @Nonnull byte[] b, int i, int j) {
+		while (i < a.length && j < b.length && a[i] == b[j]) {
+			i++;
+			j++;
+		}
+		return j;
+	}
+
+	/**
+	 * Follows the kept wavefronts back from the end, preferring mismatches, then gaps in A, then gaps in B,
+	 * and gap extensions over openings.
+	 */
+	@Nonnull
+	private AlignmentPath traceback(int aLength, int bLength, int cost) {
+		int mismatch = m_mismatch, openExtend = m_open + m_extend, extend = m_extend;
+		AlignmentPath.Builder path = new AlignmentPath.Builder();
+		int s = cost, k = bLength - aLength, j = bLength;
+		byte state = AlignmentPath.MATCH;
+		while (s > 0 || state != AlignmentPath.MATCH) {
+			if (state == AlignmentPath.MATCH) {
+				Wavefront current = m_wavefronts[s];
+				int index = k - current.m_lo;
+				int fromMismatch = clip(k, offset(get(s - mismatch, true, 0), AlignmentPath.MATCH, k) + 1, aLength, bLength);
+				int ins = current.m_i[index], del = current.m_d[index];
+				int before = Math.max(fromMismatch, Math.max(ins, del));
+				path.append(AlignmentPath.MATCH, j - before);
+				j = before;
+				if (before == fromMismatch) {
+					path.append(AlignmentPath.MATCH);
+					s -= mismatch;
+					j--;
+				} else {
+					state = before == ins ? AlignmentPath.GAP_IN_A : AlignmentPath.GAP_IN_B;
+				}
+			} else if (state == AlignmentPath.GAP_IN_A) {
+				path.append(AlignmentPath.GAP_IN_A);
+				if (offset(get(s - extend, true, 0), AlignmentPath.GAP_IN_A, k - 1) + 1 == j) {
+					s -= extend;
+				} else {
+					s -= openExtend;
+					state = AlignmentPath.MATCH;
+				}
+				k--;
+				j--;
+			} else {
+				path.append(AlignmentPath.GAP_IN_B);
+				if (offset(get(s - extend, true, 0), AlignmentPath.GAP_IN_B, k + 1) == j) {
+					s -= extend;
+				} else {
+					s -= openExtend;
+					state = AlignmentPath.MATCH;
+				}
+				k++;
+			}
+		}
+		assert k == 0 : "Traceback ended on diagonal " + k;
+		path.append(AlignmentPath.MATCH, j);
+		long score = ((long) m_match * (aLength + bLength) - cost) / 2;
+		return path.reverse().build(0, 0, Math.toIntExact(score));
+	}
+
+	/**
+	 * The furthest offsets for one cost, over diagonals {@code [lo, hi]}; empty if {@code lo > hi}.
+	 */
+	private static final class Wavefront {
+
+		private int m_lo, m_hi;
+		private int[] m_m = new int[0], m_i = new int[0], m_d = new int[0];
+
+		void reset(int lo, int hi) {
+			m_lo = lo;
+			m_hi = hi;
+			int width = Math.max(0, hi - lo + 1);
+			if (m_m.length < width) {
+				m_m = new int[width];
+				m_i = new int[width];
+				m_d = new int[width];
+			}
+		}
+	}
+
+}
@@ -27,9 +27,23 @@ import org.biojava.nbio.core.sequence.compound.NucleotideCompound;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * A test for {@link SequenceAligner}.
@@ -59,6 +73,43 @@ public class SequenceAlignerTest {
 		return new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new).setGapPenalty(sf_gapPenalty).build();
 	}
 
+	/**
+	 * @return Between {@code minLength} and {@code maxLength} residues drawn uniformly from {@code alphabet}
+	 */
+	private static String randomSequence(Random random, int minLength, int maxLength, String alphabet) {
+		StringBuilder sequence = new StringBuilder(maxLength);
+		for (int i = minLength + random.nextInt(maxLength - minLength + 1); i > 0; i--) {
+			sequence.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sequence.toString();
+	}
+
+	/**
+	 * @param mutationRate The percent of residues of the first sequence that are substituted, followed by an insertion, or deleted
+	 * in the second, with equal probability
+	 * @return A sequence from {@link #randomSequence}, and a mutant of it with at least one residue
+	 */
+	private static String[] randomPair(Random random, int minLength, int maxLength, String alphabet, int mutationRate) {
+		String a = randomSequence(random, minLength, maxLength, alphabet);
+		StringBuilder b = new StringBuilder(a.length() + 1);
+		for (char residue : a.toCharArray()) {
+			if (random.nextInt(100) >= mutationRate) {
+				b.append(residue);
+				continue;
+			}
+			switch (random.nextInt(3)) {
+				case 0:
+					b.append(alphabet.charAt(random.nextInt(alphabet.length())));
+					break;
+				case 1:
+					b.append(residue).append(alphabet.charAt(random.nextInt(alphabet.length())));
+					break;
+			}
+		}
+		if (b.length() == 0) b.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return new String[] {a, b.toString()};
+	}
+
 	@Test
 	public void testPerfect() throws Exception {
 		DNASequence a = new DNASequence("ACTAACCGAGATTTTACCCCACGGTATTTTTT");
@@ -168,7 +219,7 @@ public class SequenceAlignerTest {
 		assertEquals(sf_m * "ACTACTACTACTACT".length() + sf_gop + "GGGGGGGGG".length() * sf_gep, score);
 	}
 
-	@Test // TODO
+	@Test
 	public void testAlignFastDeletionAtStartLocal() throws Exception {
 		DNASequence a = new DNASequence("GGGGGGGGGACTACTACTACTACT".trim());
 		DNASequence b = new DNASequence("         ACTACTACTACTACT".trim());
@@ -204,7 +255,7 @@ public class SequenceAlignerTest {
 		assertEquals(sf_m * "ACTACTACT".length() + sf_gop + 2 * sf_gep + sf_m * "ACTACTACT".length(), score);
 	}
 
-	@Test // TODO The score is one mismatch off
+	@Test
 	public void testAlignFastHard() throws Exception {
 		DNASequence a = new DNASequence("CGTAT  ATATCGCGCGCGCGATATATATATCT TCTCTAAAAAAA".replaceAll(" ", ""));
 		DNASequence b = new DNASequence("GGTATATATATCGCGCGCACGAT TATATATCTCTCTCTAAAAAAA".replaceAll(" ", ""));
@@ -217,9 +268,518 @@ public class SequenceAlignerTest {
 		assertEquals(expectedScore, aligner.alignFast(a, b), 0);
 	}
 
-	@Test // TODO
-	public void testPvalue() {
+	@Test
+	public void testAlignFastIgnoresCase() throws Exception {
+		DNASequence a = new DNASequence("ACTACTGACTACT");
+		DNASequence b = new DNASequence("actactgactact");
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = getGlobalAligner();
+		assertEquals(sf_m * "ACTACTGACTACT".length(), aligner.alignFast(a, b));
+	}
+
+	@Test
+	public void testAlignFastWithWorkspace() throws Exception {
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = getGlobalAligner();
+		SequenceAligner.Workspace workspace = aligner.newWorkspace();
+		DNASequence a = new DNASequence("ACTACTGACTACTACT"), b = new DNASequence("ACTACTACTACTACT"), c = new DNASequence("ACGACGACGACGACG");
+		assertEquals(aligner.alignFast(a, b), aligner.alignFast(a, b, workspace));
+		assertEquals(aligner.alignFast(a, c), aligner.alignFast(a, c, workspace)); // same lengths, so the buffers are reused
+		assertEquals(aligner.alignFast(b, a), aligner.alignFast(b, a, workspace));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAlignFastWithForeignWorkspace() throws Exception {
+		DNASequence a = new DNASequence("ACTACT");
+		getGlobalAligner().alignFast(a, a, getLocalAligner().newWorkspace());
+	}
+
+	@Test
+	public void testAlignerOnPoolThreadCanBeCollected() throws Exception {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			DNASequence a = new DNASequence("ACTACTGACTACTACT"), b = new DNASequence("ACTACTACTACTACT");
+			List<WeakReference<SequenceAligner<DNASequence, NucleotideCompound>>> references = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				SequenceAligner<DNASequence, NucleotideCompound> aligner = getGlobalAligner();
+				pool.submit(() -> aligner.align(a, b).getScore() + aligner.alignFast(a, b)).get();
+				references.add(new WeakReference<>(aligner));
+			}
+			for (int attempt = 0; attempt < 50 && references.stream().anyMatch(reference -> reference.get() != null); attempt++) {
+				System.gc();
+				Thread.sleep(20);
+			}
+			assertTrue(references.stream().allMatch(reference -> reference.get() == null));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testStripedMatchesScalar() throws Exception {
+		String[] sequences = {
+				"ACTACTGACTACTACTGGTGGTGGGTGGAAAT", "ACTACTACTACTACTGGTGGTGGTGGAAATGGT", "GGGGACTACTGGGGGGGGGGGGGGGGGGGGGG",
+				"CGTATATATCGCGCGCGCGATATATATATCTTCTCTAAAAAAA", "A", "ACGTNACGTN", "TTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTT"
+		};
+		for (Alignments.PairwiseSequenceAlignerType type : new Alignments.PairwiseSequenceAlignerType[] {Alignments.PairwiseSequenceAlignerType.GLOBAL, Alignments.PairwiseSequenceAlignerType.LOCAL}) {
+			SequenceAligner<DNASequence, NucleotideCompound> scalar = new SequenceAligner.Builder<>(sf_matrix, type, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).build();
+			SequenceAligner<DNASequence, NucleotideCompound> striped = new SequenceAligner.Builder<>(sf_matrix, type, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setScoreEngine(ScoreEngine.STRIPED).build();
+			for (String a : sequences) {
+				for (String b : sequences) {
+					DNASequence x = new DNASequence(a), y = new DNASequence(b);
+					assertEquals(type + " " + a + " " + b, scalar.alignFast(x, y), striped.alignFast(x, y));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAlignMatchesAlignFast() throws Exception {
+		String[] pair = randomPair(new Random(0), 300, 300, "ACGT", 15);
+		DNASequence x = new DNASequence(pair[0]), y = new DNASequence(pair[1]);
+		for (SequenceAligner<DNASequence, NucleotideCompound> aligner : Arrays.asList(getGlobalAligner(), getLocalAligner())) {
+			SequenceAlignment<DNASequence, NucleotideCompound> alignment = aligner.align(x, y);
+			assertEquals(aligner.alignFast(x, y), alignment.getScore());
+			assertEquals(alignment.getAlignedA().getLength(), alignment.getAlignedB().getLength());
+		}
+	}
+
+	@Test
+	public void testStripedSaturates() throws Exception {
+		SubstitutionMatrix<NucleotideCompound> matrix = new SimpleSubstitutionMatrix<>(AmbiguityDNACompoundSet.getDNACompoundSet(), (short) 2000, (short) -2000);
+		DNASequence a = new DNASequence("ACGTTGCAACGTTGCAACGT"); // scores 40000 against itself, past 16 bits
+		SequenceAligner<DNASequence, NucleotideCompound> striped = new SequenceAligner.Builder<>(matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setScoreEngine(ScoreEngine.STRIPED).build();
+		assertEquals(2000 * 20, striped.alignFast(a, a));
+	}
 
+	@Test
+	public void testAlignFastHugePenalties() throws Exception {
+		GapPenalty gapPenalty = new SimpleGapPenalty(1 << 28, 1);
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(gapPenalty).build();
+		assertEquals(3 * sf_m - (1 << 28) - 1, aligner.alignFast(new DNASequence("ACGT"), new DNASequence("AGT")));
+	}
+
+	@Test
+	public void testBandedMatchesFull() throws Exception {
+		String[] sequences = {
+				"ACTACTGACTACTACTGGTGGTGGGTGGAAAT", "ACTACTACTACTACTGGTGGTGGTGGAAATGGT", "GGGGACTACTGGGGGGGGGGGGGGGGGGGGGG",
+				"CGTATATATCGCGCGCGCGATATATATATCTTCTCTAAAAAAA", "A", "", "TTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTTT"
+		};
+		SubstitutionTable<NucleotideCompound> table = new SubstitutionTable<>(sf_matrix);
+		for (boolean global : new boolean[] {true, false}) {
+			ScoreKernel full = new ScoreKernel(table, sf_gop, sf_gep, global);
+			BandedKernel wide = new BandedKernel(table, sf_gop, sf_gep, global, Band.fixed(50));
+			for (String a : sequences) {
+				for (String b : sequences) {
+					byte[] x = table.encode(new DNASequence(a)), y = table.encode(new DNASequence(b));
+					int score = full.score(x, y);
+					assertEquals(global + " " + a + " " + b, score, wide.score(x, y));
+					AlignmentPath path = wide.align(x, y);
+					assertEquals(global + " " + a + " " + b, score, path.getScore());
+					assertEquals(global + " " + a + " " + b, score, AlignmentPath.rescore(path, x, y, table, sf_gop, sf_gep));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAutoBand() throws Exception {
+		DNASequence a = new DNASequence("C GTAT  ATATCGCGCGC G CGATATATATATCT TCTCTAAAAAAA".replaceAll(" ", ""));
+		DNASequence b = new DNASequence("G GTATATATATCGCGCGC A CGAT TATATATCTCTCTCTAAAAAAA".replaceAll(" ", ""));
+		SequenceAligner<DNASequence, NucleotideCompound> banded = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setBand(Band.auto(1)).build();
+		int score = getGlobalAligner().alignFast(a, b);
+		assertEquals(score, banded.alignFast(a, b));
+		SequenceAlignment<DNASequence, NucleotideCompound> alignment = banded.align(a, b);
+		assertEquals(score, alignment.getScore());
+		assertEquals(3, alignment.getNInsertionsInA());
+		assertEquals(1, alignment.getNInsertionsInB());
+	}
+
+	@Test
+	public void testAutoBandIsOptimalForGlobal() throws Exception {
+		SequenceAligner<DNASequence, NucleotideCompound> full = getGlobalAligner();
+		SequenceAligner<DNASequence, NucleotideCompound> banded = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setBand(Band.auto(1)).build();
+		Random random = new Random(17);
+		for (int trial = 0; trial < 300; trial++) {
+			String[] pair = randomPair(random, 1, 200, "ACGT", 10 * random.nextInt(11));
+			DNASequence a = new DNASequence(pair[0]), b = new DNASequence(pair[1]);
+			assertEquals(full.alignFast(a, b), banded.alignFast(a, b));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testBandRequiresScalar() throws Exception {
+		new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setBand(Band.fixed(4)).setScoreEngine(ScoreEngine.STRIPED).build();
+	}
+
+	@Test
+	public void testAlignFastAll() throws Exception {
+		DNASequence query = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAAT");
+		List<DNASequence> targets = new ArrayList<>();
+		for (String target : new String[] {"ACTACTACTACTACTGGTGGTGGTGGAAATGGT", "GGGGACTACTGGGGGG", "A", "ACTACTGACTACTACTGGTGGTGGGTGGAAAT"}) {
+			targets.add(new DNASequence(target));
+		}
+		SequenceAligner<DNASequence, NucleotideCompound> serial = getLocalAligner();
+		int[] expected = new int[targets.size()];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = serial.alignFast(query, targets.get(i));
+		}
+		assertArrayEquals(expected, serial.alignFastAll(query, targets));
+		assertArrayEquals(expected, serial.alignFastAll(query, targets.parallelStream()).toArray());
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			SequenceAligner<DNASequence, NucleotideCompound> parallel = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setScoreEngine(ScoreEngine.STRIPED).setExecutor(pool).build();
+			assertArrayEquals(expected, parallel.alignFastAll(query, new LinkedList<>(targets)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testAlignFastAllPairs() throws Exception {
+		Random random = new Random(1);
+		List<DNASequence> sequences = new ArrayList<>();
+		for (int i = 0; i < 70; i++) {
+			sequences.add(new DNASequence(randomSequence(random, 1, 30, "ACGT")));
+		}
+		SequenceAligner<DNASequence, NucleotideCompound> serial = getGlobalAligner();
+		ScoreMatrix onHeap = serial.alignFastAllPairs(sequences);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		Path file = Files.createTempFile("scores", ".bin");
+		try {
+			ScoreMatrix mapped = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setExecutor(pool).build()
+					.alignFastAllPairs(sequences, file);
+			assertEquals(70 * 71 / 2 * 4, Files.size(file));
+			for (int i = 0; i < sequences.size(); i++) {
+				for (int j = 0; j < sequences.size(); j++) {
+					int score = serial.alignFast(sequences.get(i), sequences.get(j));
+					assertEquals(score, onHeap.get(i, j));
+					assertEquals(score, mapped.get(i, j));
+				}
+			}
+		} finally {
+			pool.shutdown();
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testInterSequenceMatchesScalar() throws Exception {
+		SubstitutionTable<NucleotideCompound> table = new SubstitutionTable<>(sf_matrix);
+		byte[] a = table.encode(new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCAT"));
+		byte[] b = table.encode(new DNASequence("GTCAGTTACGGATCATGCATTGACCAT"));
+		for (boolean global : new boolean[] {true, false}) {
+			int[] scalar = new PermutationTest(() -> new PermutationTest.Worker(new ScoreKernel(table, sf_gop, sf_gep, global)), null).run(a, b, 150, 7);
+			int[] lanes = new PermutationTest(() -> new PermutationTest.Worker(new InterSequenceKernel(table, sf_gop, sf_gep, global)), null).run(a, b, 150, 7);
+			assertArrayEquals(scalar, lanes);
+		}
+	}
+
+	@Test
+	public void testPvalueParallelMatchesSerial() throws Exception {
+		DNASequence a = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCAT");
+		DNASequence b = new DNASequence("GTCAGTTACGGATCATGCATTGACCATGGATCAGTACAGTCAA");
+		SequenceAligner<DNASequence, NucleotideCompound> serial = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setSeed(42).build();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SequenceAligner<DNASequence, NucleotideCompound> parallel = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setSeed(42).setExecutor(pool).build();
+			SequenceAlignment<DNASequence, NucleotideCompound> alignment = serial.align(a, b);
+			double pvalue = serial.calcPvalueByPermutation(1000, alignment).getPvalue();
+			assertEquals(pvalue, parallel.calcPvalueByPermutation(1000, alignment).getPvalue(), 0);
+			assertEquals(pvalue, serial.calcPvalueByPermutation(1000, alignment).getPvalue(), 0);
+			assertTrue(pvalue > 0.01 && pvalue < 0.99); // so that the permutations matter
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSequentialPvalue() throws Exception {
+		DNASequence a = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCAT");
+		DNASequence b = new DNASequence("GTCAGTTACGGATCATGCATTGACCATGGATCAGTACAGTCAA");
+		SequenceAligner<DNASequence, NucleotideCompound> serial = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setSeed(42).build();
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			SequenceAligner<DNASequence, NucleotideCompound> parallel = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setSeed(42).setExecutor(pool).build();
+			SequenceAlignment<DNASequence, NucleotideCompound> alignment = serial.align(a, b);
+			SequenceAlignmentWithPvalue<DNASequence, NucleotideCompound> sequential = serial.calcPvalueByPermutation(10000, StoppingRule.exceedances(10), alignment);
+			assertTrue(sequential.getNSimulations() < 1000);
+			assertEquals(10d / sequential.getNSimulations(), sequential.getPvalue(), 0);
+			assertEquals(sequential, parallel.calcPvalueByPermutation(10000, StoppingRule.exceedances(10), alignment));
+			// the first simulations are the same as in a full run
+			SubstitutionTable<NucleotideCompound> table = new SubstitutionTable<>(sf_matrix);
+			int[] all = new PermutationTest(() -> new PermutationTest.Worker(new ScoreKernel(table, sf_gop, sf_gep, true)), null).run(table.encode(a), table.encode(b), 10000, 42);
+			int nExceeding = 0;
+			for (int i = 0; i < sequential.getNSimulations(); i++) {
+				if (all[i] >= alignment.getScore()) nExceeding++;
+			}
+			assertEquals(10, nExceeding);
+			assertTrue(all[sequential.getNSimulations() - 1] >= alignment.getScore());
+			// a self-alignment never gets there, so it runs every simulation
+			assertEquals(300, serial.alignAndCalcPvalue(300, StoppingRule.exceedances(10), a, a).getNSimulations());
+			assertTrue(serial.calcPvalueByPermutation(100000, StoppingRule.precision(0.05), alignment).getNSimulations() < 1000);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testGumbelFit() throws Exception {
+		// scores drawn from a known distribution, by inverting its CDF
+		Random random = new Random(3);
+		int[] samples = new int[5000];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (int) Math.round(200 - Math.log(-Math.log(random.nextDouble())) / 0.05);
+		}
+		GumbelFit fit = GumbelFit.fit(samples);
+		assertEquals(200, fit.getMu(), 2);
+		assertEquals(0.05, fit.getLambda(), 0.002);
+		// related sequences: far beyond what 300 permutations could resolve
+		DNASequence a = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCATGCATTAGCAGGATACCAGTGACATTTA");
+		DNASequence b = new DNASequence("ACTACTGACTACTAGGTGGTGGGTCGAAATCCGATTAGCATGCATAGCAGGATACCAGTGACATTTA");
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setSeed(5).build();
+		SequenceAlignmentWithGumbelFit<DNASequence, NucleotideCompound> result = aligner.alignAndFitGumbel(300, a, b);
+		assertEquals(300, result.getNSimulations());
+		assertTrue(result.getPvalue() > 0 && result.getPvalue() < 1e-6);
+		assertEquals(result.getFit().pvalue(result.getScore()), result.getPvalue(), 0);
+	}
+
+	@Test
+	public void testNullDistributionCache() throws Exception {
+		DNASequence a = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCAT");
+		DNASequence b = new DNASequence("GTCAGTTACGGATCATGCATTGACCATGGATCAGTACAGTCAA");
+		DNASequence shuffled = new DNASequence("AACTGACGTTCAGGATCATGCATTGACCATGGATCAGTACAGT"); // same composition as b
+		NullDistributionCache cache = NullDistributionCache.create(1 << 20);
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setNullCache(cache).build();
+		SequenceAlignment<DNASequence, NucleotideCompound> alignment = aligner.align(a, b);
+		double pvalue = aligner.calcPvalueByPermutation(500, alignment).getPvalue();
+		assertEquals(pvalue, aligner.calcPvalueByPermutation(500, alignment).getPvalue(), 0); // no seed, so only equal if cached
+		assertEquals(1, cache.size());
+		aligner.alignAndCalcPvalue(500, a, shuffled);
+		assertEquals(1, cache.size());
+		aligner.alignAndCalcPvalue(500, b, a);
+		assertEquals(2, cache.size());
+		Path file = Files.createTempFile("nulls", ".bin");
+		try {
+			cache.save(file);
+			NullDistributionCache loaded = NullDistributionCache.load(file, 1 << 20);
+			assertEquals(2, loaded.size());
+			SequenceAligner<DNASequence, NucleotideCompound> other = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setNullCache(loaded).build();
+			assertEquals(pvalue, other.calcPvalueByPermutation(500, alignment).getPvalue(), 0);
+			assertEquals(2, loaded.size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testCalcPvaluesByPermutation() throws Exception {
+		DNASequence query = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCAT");
+		List<DNASequence> targets = new ArrayList<>();
+		targets.add(new DNASequence("GTCAGTTACGGATCATGCATTGACCATGGATCAGTACAGTCAA"));
+		targets.add(new DNASequence("ACTACTGACTACTTCTGGTGGTGGGTGGAAATCGATTAGCAT"));
+		targets.add(new DNASequence("CATTAGCAGGATACCA"));
+		for (ScoreEngine engine : ScoreEngine.values()) {
+			SequenceAligner<DNASequence, NucleotideCompound> aligner = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setScoreEngine(engine).setSeed(11).build();
+			double[] pvalues = aligner.calcPvaluesByPermutation(200, query, targets);
+			for (int i = 0; i < targets.size(); i++) {
+				assertEquals(aligner.alignAndCalcPvalue(200, targets.get(i), query).getPvalue(), pvalues[i], 0);
+			}
+		}
+	}
+
+	@Test
+	public void testScoreAtLeast() throws Exception {
+		SubstitutionTable<NucleotideCompound> table = new SubstitutionTable<>(sf_matrix);
+		Random random = new Random(8);
+		for (int trial = 0; trial < 500; trial++) {
+			String[] pair = randomPair(random, 1, 50, "ACGT", 50);
+			byte[] a = table.encode(new DNASequence(pair[0])), b = table.encode(new DNASequence(pair[1]));
+			ScoreKernel kernel = new ScoreKernel(table, sf_gop, sf_gep, random.nextBoolean());
+			int score = kernel.score(a, b), threshold = score + random.nextInt(100) - 20;
+			int bounded = kernel.scoreAtLeast(a, b, threshold);
+			if (score >= threshold) assertEquals(score, bounded);
+			else assertTrue(bounded < threshold);
+		}
+	}
+
+	@Test
+	public void testEndGaps() throws Exception {
+		DNASequence primer = new DNASequence("GATTACAGGCTTAC");
+		DNASequence read = new DNASequence("CCGTAGCATTAGATTACAGGCTTACTTAGCAGGACCATTAG");
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setEndGaps(EndGaps.freeB()).setSeed(3).build();
+		SequenceAlignment<DNASequence, NucleotideCompound> alignment = aligner.align(primer, read);
+		assertEquals(14 * sf_m, alignment.getScore());
+		assertEquals(14 * sf_m, aligner.alignFast(primer, read));
+		assertEquals("GATTACAGGCTTAC", alignment.getSequencePair().getTarget().toString());
+		assertEquals(12, alignment.getSequencePair().getTarget().getSequenceIndexAt(1)); // 1-based
+		assertTrue(aligner.calcPvalueByPermutation(200, alignment).getPvalue() < 0.01);
+		// the reverse doesn't hold: all of the read must be aligned
+		assertTrue(aligner.alignFast(read, primer) < 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEndGapsRequireGlobal() throws Exception {
+		new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new).setEndGaps(EndGaps.overlap()).build();
+	}
+
+	@Test
+	public void testLocate() throws Exception {
+		Random random = new Random(6);
+		StringBuilder a = new StringBuilder(randomSequence(random, 2000, 2000, "ACGT"));
+		StringBuilder b = new StringBuilder(randomSequence(random, 2000, 2000, "ACGT"));
+		String hit = "GATTACAGGCTTACCATTAGCAGGATACCAGTGACATTTA";
+		a.insert(1500, hit);
+		b.insert(300, hit.replace("CATTAG", "CAAG"));
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = getLocalAligner();
+		DNASequence sequenceA = new DNASequence(a.toString()), sequenceB = new DNASequence(b.toString());
+		AlignmentHit located = aligner.locate(sequenceA, sequenceB);
+		assertEquals(aligner.alignFast(sequenceA, sequenceB), located.getScore());
+		assertTrue(located.getAStart() >= 1490 && located.getAEnd() <= 1550);
+		assertTrue(located.getBStart() >= 290 && located.getBEnd() <= 350);
+		SequenceAlignment<DNASequence, NucleotideCompound> window = aligner.align(sequenceA, sequenceB, located);
+		SequenceAlignment<DNASequence, NucleotideCompound> full = aligner.align(sequenceA, sequenceB);
+		assertEquals(full.getScore(), window.getScore());
+		assertEquals(full.getSequencePair().toString(), window.getSequencePair().toString());
+	}
+
+	@Test
+	public void testScreenThenAlign() throws Exception {
+		DNASequence query = new DNASequence("ACTACTGACTACTACTGGTGGTGGGTGGAAATCCGATTAGCAT");
+		List<DNASequence> targets = new ArrayList<>();
+		targets.add(new DNASequence("GTCAGTTACGGATCATGCATTGACCATGGATCAGTACAGTCAA"));
+		targets.add(new DNASequence("ACTACTGACTACTTCTGGTGGTGGGTGGAAATCGATTAGCAT"));
+		targets.add(new DNASequence("CATTAGCAGGATACCA"));
+		targets.add(new DNASequence("GGTGGTGGGTGGAAATCCGATT"));
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.LOCAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setExecutor(ForkJoinPool.commonPool()).setSeed(11).build();
+		int minScore = 20 * sf_m;
+		SortedMap<Integer, SequenceAlignment<DNASequence, NucleotideCompound>> byScore = aligner.alignAboveScore(query, targets, minScore);
+		double[] pvalues = aligner.calcPvaluesByPermutation(200, query, targets);
+		SortedMap<Integer, SequenceAlignmentWithPvalue<DNASequence, NucleotideCompound>> byPvalue = aligner.alignBelowPvalue(query, targets, 200, 0.01);
+		for (int i = 0; i < targets.size(); i++) {
+			SequenceAlignment<DNASequence, NucleotideCompound> expected = aligner.align(query, targets.get(i));
+			assertEquals(expected.getScore() >= minScore, byScore.containsKey(i));
+			if (byScore.containsKey(i)) {
+				assertEquals(expected.getScore(), byScore.get(i).getScore());
+				assertEquals(expected.getSequencePair().toString(), byScore.get(i).getSequencePair().toString());
+			}
+			assertEquals(pvalues[i] <= 0.01, byPvalue.containsKey(i));
+			if (byPvalue.containsKey(i)) {
+				assertEquals(pvalues[i], byPvalue.get(i).getPvalue(), 0);
+				assertEquals(expected.getSequencePair().toString(), byPvalue.get(i).getSequencePair().toString());
+			}
+		}
+		assertEquals(2, byScore.size());
+	}
+
+	@Test
+	public void testWavefront() throws Exception {
+		Random random = new Random(12);
+		SequenceAligner<DNASequence, NucleotideCompound> scalar = getGlobalAligner();
+		SequenceAligner<DNASequence, NucleotideCompound> wavefront = new SequenceAligner.Builder<>(sf_matrix, Alignments.PairwiseSequenceAlignerType.GLOBAL, DNASequence::new)
+				.setGapPenalty(sf_gapPenalty).setScoreEngine(ScoreEngine.WAVEFRONT).build();
+		for (int trial = 0; trial < 20; trial++) {
+			String[] pair = randomPair(random, 1, 3000, "ACGT", 1);
+			DNASequence sequenceA = new DNASequence(pair[0]), sequenceB = new DNASequence(pair[1]);
+			int expected = scalar.alignFast(sequenceA, sequenceB);
+			assertEquals(expected, wavefront.alignFast(sequenceA, sequenceB));
+			SequenceAlignment<DNASequence, NucleotideCompound> alignment = wavefront.align(sequenceA, sequenceB);
+			assertEquals(expected, alignment.getScore(), 0);
+			assertEquals(pair[0], alignment.getSequencePair().getQuery().toString().replace("-", ""));
+			assertEquals(pair[1], alignment.getSequencePair().getTarget().toString().replace("-", ""));
+		}
+	}
+
+	@Test
+	public void testEditDistance() throws Exception {
+		SequenceAligner<DNASequence, NucleotideCompound> aligner = SequenceAligner.dnaEditDistance().build();
+		assertEquals(-2, aligner.alignFast(new DNASequence("ACGTACGT"), new DNASequence("ACTTACG")));
+		SequenceAligner<DNASequence, NucleotideCompound> search = SequenceAligner.dnaEditDistance().setEndGaps(EndGaps.freeB()).build();
+		assertEquals(-1, search.alignFast(new DNASequence("GATTACA"), new DNASequence("CCCCGATTCACCCC")));
+		Random random = new Random(13);
+		for (EndGaps endGaps : new EndGaps[] {EndGaps.none(), EndGaps.freeB()}) {
+			SequenceAligner<DNASequence, NucleotideCompound> bitParallel = SequenceAligner.dnaEditDistance().setEndGaps(endGaps).build();
+			SequenceAligner<DNASequence, NucleotideCompound> scalar = SequenceAligner.dnaEditDistance().setEndGaps(endGaps).setScoreEngine(ScoreEngine.SCALAR).build();
+			for (int trial = 0; trial < 50; trial++) {
+				String[] pair = randomPair(random, 1, 300, "ACGT", 25);
+				DNASequence sequenceA = new DNASequence(pair[0]), sequenceB = new DNASequence(pair[1]);
+				assertEquals(scalar.alignFast(sequenceA, sequenceB), bitParallel.alignFast(sequenceA, sequenceB));
+			}
+		}
+	}
+
+	@Test
+	public void testTiledMatchesScalar() throws Exception {
+		SubstitutionTable<NucleotideCompound> table = new SubstitutionTable<>(sf_matrix);
+		Random random = new Random(14);
+		for (int trial = 0; trial < 200; trial++) {
+			String[] pair = randomPair(random, 1, 200, "ACGTN", 50);
+			byte[] a = table.encode(new DNASequence(pair[0])), b = table.encode(new DNASequence(pair[1]));
+			boolean global = random.nextBoolean();
+			TiledKernel tiled = new TiledKernel(table, sf_gop, sf_gep, global, 1 + random.nextInt(40), 1 + random.nextInt(40));
+			assertEquals(new ScoreKernel(table, sf_gop, sf_gep, global).score(a, b), tiled.score(a, b, ForkJoinPool.commonPool()));
+		}
+	}
+
+	@Test
+	public void testParallelTracebackMatchesSerial() throws Exception {
+		SubstitutionTable<NucleotideCompound> table = new SubstitutionTable<>(sf_matrix);
+		Random random = new Random(15);
+		for (int trial = 0; trial < 200; trial++) {
+			String[] pair = randomPair(random, 1, 200, "ACGTN", 50);
+			byte[] a = table.encode(new DNASequence(pair[0])), b = table.encode(new DNASequence(pair[1]));
+			boolean global = random.nextBoolean();
+			EndGaps endGaps = global && random.nextBoolean() ? EndGaps.overlap() : EndGaps.none();
+			ThreadLocal<LinearSpaceAligner> aligners = ThreadLocal.withInitial(() -> new LinearSpaceAligner(table, sf_gop, sf_gep, global, endGaps));
+			ParallelTraceback parallel = new ParallelTraceback(table, sf_gop, sf_gep, global, endGaps, aligners::get, 1 + random.nextInt(20), 1 + random.nextInt(40));
+			AlignmentPath expected = new LinearSpaceAligner(table, sf_gop, sf_gep, global, endGaps).align(a, b);
+			AlignmentPath actual = parallel.align(a, b, ForkJoinPool.commonPool());
+			assertEquals(expected.getScore(), actual.getScore());
+			assertEquals(expected.getAStart(), actual.getAStart());
+			assertEquals(expected.getBStart(), actual.getBStart());
+			assertEquals(expected.length(), actual.length());
+			for (int i = 0; i < expected.length(); i++) {
+				assertEquals(expected.getOperation(i), actual.getOperation(i));
+			}
+		}
+	}
+
+	@Test
+	public void testPackedTraceback() throws Exception {
+		Random random = new Random(16);
+		for (Alignments.PairwiseSequenceAlignerType type : new Alignments.PairwiseSequenceAlignerType[] {
+				Alignments.PairwiseSequenceAlignerType.GLOBAL, Alignments.PairwiseSequenceAlignerType.LOCAL}) {
+			SequenceAligner<DNASequence, NucleotideCompound> linear = new SequenceAligner.Builder<>(sf_matrix, type, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).build();
+			SequenceAligner<DNASequence, NucleotideCompound> packed = new SequenceAligner.Builder<>(sf_matrix, type, DNASequence::new)
+					.setGapPenalty(sf_gapPenalty).setPackedTraceback(1 << 20).build();
+			for (int trial = 0; trial < 20; trial++) {
+				String[] pair = randomPair(random, 1, 800, "ACGT", 50);
+				DNASequence sequenceA = new DNASequence(pair[0]), sequenceB = new DNASequence(pair[1]);
+				SequenceAlignment<DNASequence, NucleotideCompound> expected = linear.align(sequenceA, sequenceB);
+				SequenceAlignment<DNASequence, NucleotideCompound> actual = packed.align(sequenceA, sequenceB);
+				assertEquals(expected.getScore(), actual.getScore(), 0);
+				assertEquals(expected.getSequencePair().getQuery().toString().replace("-", ""), actual.getSequencePair().getQuery().toString().replace("-", ""));
+				assertEquals(expected.getSequencePair().getTarget().toString().replace("-", ""), actual.getSequencePair().getTarget().toString().replace("-", ""));
+			}
+		}
 	}
 
-}
\ No newline at end of file
+}